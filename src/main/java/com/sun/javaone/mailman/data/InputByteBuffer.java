@@ -51,17 +51,22 @@ public class InputByteBuffer {
     private CharsetDecoder _decoder;
     private CharBuffer _charBuffer;
     private int _readSize;
+    // Position in the channel following the bytes in _buffer. Reads are
+    // positional, so that several buffers can share a channel.
+    private long _channelPosition;
 
     /** Creates a new instance of InputByteBuffer */
-    public InputByteBuffer(FileChannel channel, ByteBuffer buffer) {
+    public InputByteBuffer(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
         _channel = channel;
         _buffer = buffer;
         _buffer.position(_buffer.capacity());
+        _channelPosition = channel.position();
     }
 
-    public void setChannelPosition(int position) throws IOException {
+    public void setChannelPosition(long position) throws IOException {
         _atEnd = false;
-        _channel.position(position);
+        _channelPosition = position;
         fillBuffer();
     }
 
@@ -88,8 +93,9 @@ public class InputByteBuffer {
         if (position >= delta) {
             _buffer.position(position - delta);
         } else {
-            _channel.position(_channel.position() - _readSize +
-                    position - delta);
+            _channelPosition = _channelPosition - _readSize +
+                    position - delta;
+            _atEnd = false;
             fillBuffer();
         }
     }
@@ -98,7 +104,8 @@ public class InputByteBuffer {
         if (!_atEnd && _buffer.remaining() == 0) {
             fillBuffer();
         }
-        return _atEnd;
+        // Bytes rewound to after reaching the end are still to be read
+        return _atEnd && _buffer.remaining() == 0;
     }
 
     public byte get() throws IOException {
@@ -106,6 +113,40 @@ public class InputByteBuffer {
         return _buffer.get();
     }
 
+    /**
+     * Advances past the next occurrence of <code>b</code>. Returns false,
+     * leaving the buffer at the end, if there is no such byte.
+     */
+    public boolean skipPast(byte b) throws IOException {
+        while (!atEnd()) {
+            if (get() == b) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Advances past the next occurrence of <code>pattern</code>. Returns
+     * false, leaving the buffer at the end, if the pattern is not found.
+     */
+    public boolean skipPast(byte[] pattern) throws IOException {
+        int matched = 0;
+        while (!atEnd()) {
+            byte b = get();
+            if (b == pattern[matched]) {
+                if (++matched == pattern.length) {
+                    return true;
+                }
+            } else if (matched > 0) {
+                // restart one byte after the start of the partial match
+                rewind(matched);
+                matched = 0;
+            }
+        }
+        return false;
+    }
+
     public short getShort() throws IOException {
         ensureAvailable(2);
         return _buffer.getShort();
@@ -173,10 +214,12 @@ public class InputByteBuffer {
 
     protected void fillBuffer() throws IOException {
         _buffer.clear();
-        _readSize = _channel.read(_buffer);
+        _readSize = _channel.read(_buffer, _channelPosition);
         if (_readSize <= 0) {
             _atEnd = true;
+            _readSize = 0;
         }
+        _channelPosition += _readSize;
         _buffer.flip();
     }
 
@@ -197,6 +240,6 @@ public class InputByteBuffer {
     }
 
     public long getChannelPosition() throws IOException {
-        return _channel.position() - _readSize + _buffer.position();
+        return _channelPosition - _readSize + _buffer.position();
     }
 }
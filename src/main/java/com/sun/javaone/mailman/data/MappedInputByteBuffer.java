@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.javaone.mailman.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An <code>InputByteBuffer</code> that maps the file in large windows
+ * instead of copying it through a small buffer. Searching for a byte or
+ * a byte sequence runs directly over the mapped window, eight bytes at a
+ * time.
+ */
+public class MappedInputByteBuffer extends InputByteBuffer {
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int MIN_WINDOW_SIZE = 8192;
+    private static final long PAGE_MASK = ~(4096L - 1);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private final long _size;
+    private final int _windowSize;
+    private long _windowStart;
+
+    public MappedInputByteBuffer(FileChannel channel) throws IOException {
+        this(channel, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedInputByteBuffer(FileChannel channel, int windowSize)
+            throws IOException {
+        super(channel, ByteBuffer.allocate(0));
+        if (windowSize < MIN_WINDOW_SIZE) {
+            throw new IllegalArgumentException(
+                    "Window size must be at least " + MIN_WINDOW_SIZE);
+        }
+        _size = channel.size();
+        _windowSize = windowSize;
+        map(0);
+    }
+
+    @Override
+    public void setChannelPosition(long position) throws IOException {
+        long offset = position - _windowStart;
+        if (offset >= 0 && offset <= _buffer.limit()) {
+            _buffer.position((int)offset);
+        } else {
+            map(position);
+        }
+    }
+
+    @Override
+    public long getChannelPosition() throws IOException {
+        return _windowStart + _buffer.position();
+    }
+
+    @Override
+    public int get(byte[] data, int offset, int length) throws IOException {
+        int readSize = 0;
+        while (length > 0 && !atEnd()) {
+            ensureAvailable(1);
+            int size = Math.min(_buffer.remaining(), length);
+            _buffer.get(data, offset, size);
+            offset += size;
+            length -= size;
+            readSize += size;
+        }
+        return readSize;
+    }
+
+    @Override
+    public void rewind(int delta) throws IOException {
+        int position = _buffer.position();
+        if (position >= delta) {
+            _buffer.position(position - delta);
+        } else {
+            map(getChannelPosition() - delta);
+        }
+    }
+
+    @Override
+    public boolean atEnd() throws IOException {
+        return getChannelPosition() >= _size;
+    }
+
+    @Override
+    public byte get() throws IOException {
+        if (!_buffer.hasRemaining()) {
+            fillBuffer();
+        }
+        return _buffer.get();
+    }
+
+    @Override
+    public boolean skipPast(byte b) throws IOException {
+        for (;;) {
+            int index = indexOf(b, _buffer.position(), _buffer.limit());
+            if (index >= 0) {
+                _buffer.position(index + 1);
+                return true;
+            }
+            _buffer.position(_buffer.limit());
+            if (atEnd()) {
+                return false;
+            }
+            fillBuffer();
+        }
+    }
+
+    @Override
+    public boolean skipPast(byte[] pattern) throws IOException {
+        int last = pattern.length - 1;
+        for (;;) {
+            // only look at candidates that fit entirely in this window
+            int end = _buffer.limit() - last;
+            int index = _buffer.position();
+            while (index < end) {
+                index = indexOf(pattern[0], index, end);
+                if (index < 0) {
+                    break;
+                }
+                if (matchesAt(pattern, index)) {
+                    _buffer.position(index + pattern.length);
+                    return true;
+                }
+                index++;
+            }
+            if (_windowStart + _buffer.limit() >= _size) {
+                _buffer.position(_buffer.limit());
+                return false;
+            }
+            map(_windowStart + Math.max(_buffer.position(), end));
+        }
+    }
+
+    /**
+     * Maps the window holding the current position.
+     */
+    @Override
+    protected void fillBuffer() throws IOException {
+        map(getChannelPosition());
+    }
+
+    private void map(long position) throws IOException {
+        long start = position & PAGE_MASK;
+        if (start >= _size) {
+            _buffer = ByteBuffer.allocate(0);
+            _windowStart = position;
+            return;
+        }
+        int length = (int)Math.min(_windowSize, _size - start);
+        _buffer = _channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        _buffer.position((int)Math.min(position - start, length));
+        _windowStart = start;
+    }
+
+    private boolean matchesAt(byte[] pattern, int index) {
+        for (int i = pattern.length - 1; i > 0; i--) {
+            if (_buffer.get(index + i) != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first <code>b</code> in the window between
+     * <code>from</code> and <code>to</code>, or -1. Whole words are tested
+     * at once: after xor-ing with <code>b</code> in every byte, the
+     * matching bytes are the zero bytes of the word.
+     */
+    private int indexOf(byte b, int from, int to) {
+        ByteBuffer buffer = _buffer;
+        long pattern = (b & 0xFFL) * ONES;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long word = buffer.getLong(i) ^ pattern;
+            long zeros = ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+            if (zeros != 0) {
+                // mapped buffers are big endian, so the first byte is the
+                // most significant one
+                return i + (Long.numberOfLeadingZeros(zeros) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -37,6 +37,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.text.ParseException;
@@ -48,6 +49,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Locale;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -104,6 +111,10 @@ class PlainTextDataAccessObjectProvider extends DataAccessObjectProvider {
 
     private static final class PlainTextAccountDataAccessObject implements
             AccountDataAccessObject {
+        // How the mailboxes of an account are loaded: "pool" parses them on
+        // a pool with one thread per processor, "virtual" on one virtual
+        // thread each and "serial" one after another on the calling thread.
+        private static final String LOAD_MODE_KEY = "mailman.loadMode";
         private static final Pattern contactPattern = Pattern.compile("(.+?) <([^>]+)>");
         private static final Matcher contactMatcher = contactPattern.matcher("");
         private static final Map<String,Contact> contacts = new HashMap<String,Contact>();
@@ -123,6 +134,7 @@ class PlainTextDataAccessObjectProvider extends DataAccessObjectProvider {
         }
 
         private static Account loadAccount(String name, File accountFile) {
+            ExecutorService executor = createLoadExecutor();
             try {
                 BufferedReader in =
                         new BufferedReader(new InputStreamReader(
@@ -132,28 +144,61 @@ class PlainTextDataAccessObjectProvider extends DataAccessObjectProvider {
                 MailServer sendMailServer = loadMailServer(in);
                 MailServer getMailServer = loadMailServer(in);
 
-                MailBox inbox = loadMailBox(name, in);
-                MailBox trash = loadMailBox(name, in);
-                MailBox sent = loadMailBox(name, in);
-                MailBox drafts = loadMailBox(name, in);
-
-                List<MailBox> mboxs = new LinkedList<MailBox>();
-                MailBox mbox;
-                while ((mbox = loadMailBox(name, in)) != null) {
-                    mboxs.add(mbox);
+                // Every mailbox is submitted before waiting on any of them,
+                // so that their files are parsed concurrently.
+                PendingMailBox inbox = loadMailBox(name, in, executor);
+                PendingMailBox trash = loadMailBox(name, in, executor);
+                PendingMailBox sent = loadMailBox(name, in, executor);
+                PendingMailBox drafts = loadMailBox(name, in, executor);
+
+                List<PendingMailBox> pending = new LinkedList<PendingMailBox>();
+                PendingMailBox mbox;
+                while ((mbox = loadMailBox(name, in, executor)) != null) {
+                    pending.add(mbox);
                 }
                 in.close();
 
+                List<MailBox> mboxs = new LinkedList<MailBox>();
+                for (PendingMailBox p : pending) {
+                    mboxs.add(p.get());
+                }
                 return new Account(name, getMailServer, sendMailServer, identity,
-                        inbox, trash, sent, drafts, mboxs);
+                        inbox.get(), trash.get(), sent.get(), drafts.get(), mboxs);
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                if (executor != null) {
+                    executor.shutdown();
+                }
             }
             return null;
         }
 
+        /**
+         * Returns the executor mailboxes are parsed on, or null to parse
+         * them on the calling thread.
+         */
+        private static ExecutorService createLoadExecutor() {
+            String mode = System.getProperty(LOAD_MODE_KEY, "pool");
+            if ("serial".equals(mode)) {
+                return null;
+            } else if ("virtual".equals(mode)) {
+                return Executors.newVirtualThreadPerTaskExecutor();
+            }
+            return Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "MailBox loader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
 
 
         private static MailServer loadMailServer(BufferedReader in) throws IOException {
@@ -167,38 +212,52 @@ class PlainTextDataAccessObjectProvider extends DataAccessObjectProvider {
             return Contact.getContact(parts[0], parts[1], parts[2], parts[3]);
         }
 
-        private static MailBox loadMailBox(String accountName,
-                BufferedReader in) throws IOException {
+        private static PendingMailBox loadMailBox(String accountName,
+                BufferedReader in, ExecutorService executor) throws IOException {
             String mboxName = in.readLine();
             if (mboxName == null) {
                 return null;
             }
-            return loadMailBox(accountName, mboxName, false);
+            return loadMailBox(accountName, mboxName, false, executor);
         }
 
-        private static MailBox loadMailBox(String accountName,
-                String mboxName,
-                boolean asFolder) throws IOException {
+        private static PendingMailBox loadMailBox(String accountName,
+                final String mboxName,
+                boolean asFolder, ExecutorService executor) throws IOException {
             MailBox.Type type = asFolder ? MailBox.Type.FOLDER :
                 typeMap.get(mboxName.toLowerCase());
             System.err.println("mboxName=" + mboxName + "type=" + type);
-            File messagesFile =
+            final File messagesFile =
                     new File(MAIL_DIRECTORY + File.separator + accountName,
                     mboxName + ".mbox");
             if (type == null) {
                 type = MailBox.Type.OTHER;
             }
-            System.err.println("loading " + mboxName);
-            MailBox mailBox = new MailBox(type, mboxName, null, messagesFile);
-            loadFolders(accountName, mailBox);
+            final MailBox.Type mboxType = type;
+            FutureTask<MailBox> task = new FutureTask<MailBox>(
+                    new Callable<MailBox>() {
+                @Override
+                public MailBox call() throws IOException {
+                    System.err.println("loading " + mboxName);
+                    return new MailBox(mboxType, mboxName, null, messagesFile);
+                }
+            });
+            if (executor == null) {
+                task.run();
+            } else {
+                executor.execute(task);
+            }
+            PendingMailBox mailBox = new PendingMailBox(task);
+            loadFolders(accountName, mboxName, mailBox, executor);
             return mailBox;
         }
 
-        private static void loadFolders(String accountName, MailBox mailBox)
+        private static void loadFolders(String accountName, String mboxName,
+                PendingMailBox mailBox, ExecutorService executor)
         throws IOException {
             File foldersFile =
                     new File(MAIL_DIRECTORY + File.separator + accountName,
-                    mailBox.getName() + ".folders");
+                    mboxName + ".folders");
             if (foldersFile.exists()) {
                 BufferedReader in = new BufferedReader(new InputStreamReader(
                         new FileInputStream(foldersFile)));
@@ -206,10 +265,9 @@ class PlainTextDataAccessObjectProvider extends DataAccessObjectProvider {
                 String line;
                 while ((line = in.readLine()) != null) {
                     if (line.trim().length() > 0) {
-                        MailBox folder = loadMailBox(
-                                accountName + File.separator + line, line, true);
-                        folder.setParent(mailBox);
-                        mailBox.addFolder(folder);
+                        mailBox.folders.add(loadMailBox(
+                                accountName + File.separator + line, line,
+                                true, executor));
                     }
                 }
 
@@ -367,6 +425,48 @@ class PlainTextDataAccessObjectProvider extends DataAccessObjectProvider {
         }
     }
 
+    /**
+     * A mailbox whose file may still be being parsed, along with its
+     * folders. <code>get</code> waits for the whole tree and links the
+     * folders to their parent in the order they were listed.
+     */
+    private static final class PendingMailBox {
+        private final FutureTask<MailBox> task;
+        private final List<PendingMailBox> folders =
+                new LinkedList<PendingMailBox>();
+
+        PendingMailBox(FutureTask<MailBox> task) {
+            this.task = task;
+        }
+
+        MailBox get() throws IOException {
+            MailBox mailBox;
+            try {
+                mailBox = task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while loading mailboxes");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                } else if (cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw new IOException(cause);
+            }
+            for (PendingMailBox pending : folders) {
+                MailBox folder = pending.get();
+                folder.setParent(mailBox);
+                mailBox.addFolder(folder);
+            }
+            return mailBox;
+        }
+    }
+
     private static final class PlainTextAddressBookDataAccessObject implements
             AddressBookDataAccessObject {
         @Override
@@ -46,6 +46,7 @@ public class Account {
     private final MailBox sent;
     private final MailBox drafts;
     private final List<MailBox> mboxs;
+    private final BodyCache bodyCache = new BodyCache();
 
     public Account(String name, MailServer getMailServer,
                    MailServer sendMailServer, Contact identity,
@@ -97,12 +98,22 @@ public class Account {
             mboxs.addAll(otherMBoxs);
         }
         this.mboxs = mboxs;
+        for (MailBox mbox : mboxs) {
+            mbox.setBodyCache(bodyCache);
+        }
     }
 
     public List<MailBox> getMailBoxs() {
         return mboxs;
     }
 
+    /**
+     * Returns the cache shared by the mailboxes of this account.
+     */
+    public BodyCache getBodyCache() {
+        return bodyCache;
+    }
+
     public String getName() {
         return name;
     }
@@ -31,25 +31,47 @@
 
 package com.sun.javaone.mailman.model;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.List;
 import java.util.LinkedList;
 
 public class AddressBook {
+    private static final int FIRST_NAME = 1;
+    private static final int LAST_NAME = 2;
+    private static final int DISPLAY_NAME = 4;
+    private static final int ADDRESS = 8;
+    private static final int ALL = FIRST_NAME | LAST_NAME | DISPLAY_NAME |
+            ADDRESS;
+
     // prevents from having duplicates
     private final Set<Contact> contacts = new HashSet<Contact>();
 
+    // The contacts by id in the trigram index, null once removed
+    private final List<Contact> indexed = new ArrayList<Contact>();
+    private final Map<Contact,Integer> ids = new HashMap<Contact,Integer>();
+    private final TrigramIndex trigrams = new TrigramIndex();
+    private int modificationCount = Contact.getModificationCount();
+
     public void add(Contact contact) {
         if (contact == null) {
             throw new IllegalArgumentException("Contact cannot be null.");
         }
 
-        contacts.add(contact);
+        if (contacts.add(contact)) {
+            index(contact);
+        }
     }
 
     public void removeAll() {
         contacts.clear();
+        indexed.clear();
+        ids.clear();
+        trigrams.clear();
     }
 
     public void remove(Contact[] contacts) {
@@ -67,7 +89,12 @@ public class AddressBook {
             throw new IllegalArgumentException("Contact cannot be null.");
         }
 
-        contacts.remove(contact);
+        if (contacts.remove(contact)) {
+            Integer id = ids.remove(contact);
+            if (id != null) {
+                indexed.set(id, null);
+            }
+        }
     }
 
     public int getContactsCount() {
@@ -79,59 +106,87 @@ public class AddressBook {
     }
 
     public Contact[] find(String query) {
-        List<Contact> matches = new LinkedList<Contact>();
-        for (Contact contact : contacts) {
-            if (contact.getFirstName().contains(query)) {
-                matches.add(contact);
-            } else if (contact.getLastName().contains(query)) {
-                matches.add(contact);
-            } else if (contact.getDisplayName().contains(query)) {
-                matches.add(contact);
-            } else if (contact.getAddress().contains(query)) {
-                matches.add(contact);
-            }
-        }
-        return matches.toArray(new Contact[0]);
+        return find(query, ALL);
     }
 
     public Contact[] findByDisplayName(String query) {
-        List<Contact> matches = new LinkedList<Contact>();
-        for (Contact contact : contacts) {
-            if (contact.getDisplayName().contains(query)) {
-                matches.add(contact);
-            }
-        }
-        return matches.toArray(new Contact[0]);
+        return find(query, DISPLAY_NAME);
     }
 
     public Contact[] findByFirstName(String query) {
-        List<Contact> matches = new LinkedList<Contact>();
-        for (Contact contact : contacts) {
-            if (contact.getFirstName().contains(query)) {
-                matches.add(contact);
-            }
-        }
-        return matches.toArray(new Contact[0]);
+        return find(query, FIRST_NAME);
     }
 
     public Contact[] findByLastName(String query) {
+        return find(query, LAST_NAME);
+    }
+
+    public Contact[] findByAddress(String query) {
+        return find(query, ADDRESS);
+    }
+
+    private Contact[] find(String query, int fields) {
+        if (modificationCount != Contact.getModificationCount()) {
+            reindex();
+        }
         List<Contact> matches = new LinkedList<Contact>();
-        for (Contact contact : contacts) {
-            if (contact.getLastName().contains(query)) {
-                matches.add(contact);
+        BitSet candidates = trigrams.find(query);
+        if (candidates == null) {
+            for (Contact contact : indexed) {
+                if (contact != null && matches(contact, query, fields)) {
+                    matches.add(contact);
+                }
+            }
+        } else {
+            for (int id = candidates.nextSetBit(0); id >= 0;
+                    id = candidates.nextSetBit(id + 1)) {
+                Contact contact = indexed.get(id);
+                if (contact != null && matches(contact, query, fields)) {
+                    matches.add(contact);
+                }
             }
         }
         return matches.toArray(new Contact[0]);
     }
 
-    public Contact[] findByAddress(String query) {
-        List<Contact> matches = new LinkedList<Contact>();
+    private static boolean matches(Contact contact, String query,
+            int fields) {
+        return ((fields & FIRST_NAME) != 0 &&
+                    contact.getFirstName().contains(query)) ||
+                ((fields & LAST_NAME) != 0 &&
+                    contact.getLastName().contains(query)) ||
+                ((fields & DISPLAY_NAME) != 0 &&
+                    contact.getDisplayName().contains(query)) ||
+                ((fields & ADDRESS) != 0 &&
+                    contact.getAddress().contains(query));
+    }
+
+    private void index(Contact contact) {
+        int id = indexed.size();
+        indexed.add(contact);
+        ids.put(contact, id);
+        indexContact(trigrams, id, contact);
+    }
+
+    /**
+     * Indexes the names and address of <code>contact</code>.
+     */
+    static void indexContact(TrigramIndex trigrams, int id, Contact contact) {
+        trigrams.add(id, contact.getFirstName());
+        trigrams.add(id, contact.getLastName());
+        trigrams.add(id, contact.getDisplayName());
+        trigrams.add(id, contact.getAddress());
+    }
+
+    // Names and addresses changed since the contacts were indexed
+    private void reindex() {
+        modificationCount = Contact.getModificationCount();
+        indexed.clear();
+        ids.clear();
+        trigrams.clear();
         for (Contact contact : contacts) {
-            if (contact.getAddress().contains(query)) {
-                matches.add(contact);
-            }
+            index(contact);
         }
-        return matches.toArray(new Contact[0]);
     }
 
     @Override
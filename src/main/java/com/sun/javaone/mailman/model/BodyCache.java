@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.javaone.mailman.model;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of message bodies, weighted by the bytes the bodies take
+ * on the heap. The least recently used bodies are evicted first. An
+ * account shares one cache between all of its mailboxes.
+ */
+public final class BodyCache {
+    public static final String CAPACITY_KEY = "mailman.bodyCacheSize";
+    private static final long DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+    private final Map<Message,String> bodies =
+            new LinkedHashMap<Message,String>(64, 0.75f, true);
+    private long capacity;
+    private long size;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * Creates a cache holding at most <code>capacity</code> bytes of
+     * bodies.
+     */
+    public BodyCache(long capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * Creates a cache with the capacity given by the
+     * <code>mailman.bodyCacheSize</code> system property, in bytes.
+     */
+    public BodyCache() {
+        this(Long.getLong(CAPACITY_KEY, DEFAULT_CAPACITY));
+    }
+
+    /**
+     * Returns the cached body of <code>message</code>, or null.
+     */
+    public synchronized String get(Message message) {
+        String body = bodies.get(message);
+        if (body == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+        return body;
+    }
+
+    /**
+     * Returns true if the body of <code>message</code> is cached. Unlike
+     * <code>get</code>, this counts neither a hit nor a miss, and leaves
+     * the order of eviction as it is.
+     */
+    public synchronized boolean contains(Message message) {
+        return bodies.containsKey(message);
+    }
+
+    /**
+     * Caches the body of <code>message</code>, evicting the least recently
+     * used bodies if the cache is full. Bodies larger than the cache are
+     * not kept.
+     */
+    public synchronized void put(Message message, String body) {
+        long weight = getWeight(body);
+        if (weight > capacity) {
+            remove(message);
+            return;
+        }
+        String old = bodies.put(message, body);
+        if (old != null) {
+            size -= getWeight(old);
+        }
+        size += weight;
+        evict();
+    }
+
+    public synchronized void remove(Message message) {
+        String old = bodies.remove(message);
+        if (old != null) {
+            size -= getWeight(old);
+        }
+    }
+
+    public synchronized void clear() {
+        bodies.clear();
+        size = 0;
+    }
+
+    public synchronized void setCapacity(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be negative.");
+        }
+        this.capacity = capacity;
+        evict();
+    }
+
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the bytes taken by the cached bodies.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    private void evict() {
+        Iterator<String> eldest = bodies.values().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            size -= getWeight(eldest.next());
+            eldest.remove();
+            evictionCount++;
+        }
+    }
+
+    private static long getWeight(String body) {
+        return 2L * body.length();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BodyCache [size=" + size + " capacity=" + capacity +
+                " hits=" + hitCount + " misses=" + missCount +
+                " evictions=" + evictionCount + "]";
+    }
+}
@@ -35,8 +35,13 @@ import java.io.File;
 import java.io.FileReader;
 import java.net.URI;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class Contact implements Cloneable {
     private static final Map<String,URI> IMAGE_MAP;
@@ -46,15 +51,32 @@ public class Contact implements Cloneable {
     private static final String MAP_FILE =
             System.getProperty("user.dir") + File.separator + ".mailman" +
             File.separator + "contactImageMap";
-    private static final Map<String,Contact> CONTACT_MAP =
-            new HashMap<String,Contact>();
+    // Contacts by normalized address, and by id in chunks that are
+    // created as ids are handed out. The table of chunks is replaced by a
+    // larger copy when it fills; chunks are only added under CHUNK_LOCK,
+    // so that none is lost while the table is copied.
+    private static final ConcurrentMap<String,Contact> CONTACT_MAP =
+            new ConcurrentHashMap<String,Contact>();
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final Object CHUNK_LOCK = new Object();
+    private static volatile AtomicReferenceArray<AtomicReferenceArray<Contact>>
+            contactTable = new AtomicReferenceArray<
+                    AtomicReferenceArray<Contact>>(16);
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
     private static final URI DEFAULT_IMAGE_URI;
+    // Counts the changes to the names and addresses of all contacts, so
+    // that indexes of them know when to rebuild
+    private static final AtomicInteger MODIFICATION_COUNT = new AtomicInteger();
 
-    private String firstName;
-    private String lastName;
-    private String displayName;
-    private String address;
+    // Volatile, as getContact may fill in the names of a contact other
+    // threads are already reading
+    private volatile String firstName;
+    private volatile String lastName;
+    private volatile String displayName;
+    private volatile String address;
     private URI imageURI;
+    private final int id;
 
     static {
         IMAGE_MAP = new HashMap<String,URI>();
@@ -75,19 +97,108 @@ public class Contact implements Cloneable {
         }
     }
 
+    /**
+     * Returns the contact with the given address, creating it if there is
+     * none. Addresses are compared ignoring case and surrounding spaces.
+     * Safe to call from any thread.
+     */
     public static Contact getContact(String first, String last,
             String displayName,
             String address) {
-        Contact contact = CONTACT_MAP.get(address);
+        String key = normalize(address);
+        Contact contact = CONTACT_MAP.get(key);
         if (contact == null) {
-            contact = new Contact(first, last, displayName, address);
-            CONTACT_MAP.put(address, contact);
+            // The contact is in the table before it can be found by its
+            // address; one that loses the race leaves its id unused
+            Contact created = new Contact(first, last, displayName, address,
+                    NEXT_ID.getAndIncrement());
+            AtomicReferenceArray<Contact> chunk = getChunk(created.id, true);
+            chunk.set(created.id & (CHUNK_SIZE - 1), created);
+            contact = CONTACT_MAP.putIfAbsent(key, created);
+            if (contact == null) {
+                return created;
+            }
+            chunk.set(created.id & (CHUNK_SIZE - 1), null);
+        }
+        if (displayName != null && !displayName.equals(address) &&
+                contact.displayName.equals(contact.address)) {
+            // Checked again under the lock the setters take, so that two
+            // threads cannot both replace the name
+            synchronized (contact) {
+                if (contact.displayName.equals(contact.address)) {
+                    // Prefer a real name over a bare address, so that the
+                    // contact does not depend on the order mailboxes are
+                    // loaded in.
+                    contact.firstName = first == null ? "" : first;
+                    contact.lastName = last == null ? "" : last;
+                    contact.displayName = displayName;
+                    MODIFICATION_COUNT.incrementAndGet();
+                }
+            }
         }
         return contact;
     }
 
+    /**
+     * Returns the contact with the given id, or null if there is none.
+     */
+    public static Contact getContact(int id) {
+        AtomicReferenceArray<Contact> chunk = getChunk(id, false);
+        return (chunk == null) ? null : chunk.get(id & (CHUNK_SIZE - 1));
+    }
+
+    private static AtomicReferenceArray<Contact> getChunk(int id,
+            boolean create) {
+        if (id < 0) {
+            return null;
+        }
+        int index = id >>> CHUNK_BITS;
+        AtomicReferenceArray<AtomicReferenceArray<Contact>> table =
+                contactTable;
+        AtomicReferenceArray<Contact> chunk = (index < table.length()) ?
+            table.get(index) : null;
+        if (chunk != null || !create) {
+            return chunk;
+        }
+        synchronized (CHUNK_LOCK) {
+            table = contactTable;
+            if (index >= table.length()) {
+                int length = table.length();
+                while (index >= length) {
+                    length *= 2;
+                }
+                AtomicReferenceArray<AtomicReferenceArray<Contact>> grown =
+                        new AtomicReferenceArray<
+                                AtomicReferenceArray<Contact>>(length);
+                for (int i = 0; i < table.length(); i++) {
+                    grown.set(i, table.get(i));
+                }
+                contactTable = table = grown;
+            }
+            chunk = table.get(index);
+            if (chunk == null) {
+                chunk = new AtomicReferenceArray<Contact>(CHUNK_SIZE);
+                table.set(index, chunk);
+            }
+            return chunk;
+        }
+    }
+
+    private static String normalize(String address) {
+        return (address == null) ? "" :
+            address.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns a count that changes whenever a name, address or picture of
+     * a contact changes.
+     */
+    public static int getModificationCount() {
+        return MODIFICATION_COUNT.get();
+    }
+
     private Contact(String firstName, String lastName, String displayName,
-                   String address) {
+                   String address, int id) {
         if (displayName == null || displayName.length() == 0) {
             throw new IllegalArgumentException(
                     "Display name cannot be null or empty.");
@@ -100,10 +211,20 @@ public class Contact implements Cloneable {
         this.lastName = lastName == null ? "" : lastName;
         this.displayName = displayName;
         this.address = address;
+        this.id = id;
+    }
+
+    /**
+     * Returns the id of this contact, which stays the same for the life of
+     * the application. Ids are small, mostly consecutive integers.
+     */
+    public int getId() {
+        return id;
     }
 
     public void setImageLocation(URI path) {
         IMAGE_MAP.put(getAddress().toLowerCase(), path);
+        MODIFICATION_COUNT.incrementAndGet();
     }
 
     public URI getImageLocation() {
@@ -118,32 +239,36 @@ public class Contact implements Cloneable {
         return firstName;
     }
 
-    public void setFirstName(String firstName) {
+    public synchronized void setFirstName(String firstName) {
         this.firstName = firstName;
+        MODIFICATION_COUNT.incrementAndGet();
     }
 
     public String getLastName() {
         return lastName;
     }
 
-    public void setLastName(String lastName) {
+    public synchronized void setLastName(String lastName) {
         this.lastName = lastName;
+        MODIFICATION_COUNT.incrementAndGet();
     }
 
     public String getDisplayName() {
         return displayName;
     }
 
-    public void setDisplayName(String displayName) {
+    public synchronized void setDisplayName(String displayName) {
         this.displayName = displayName;
+        MODIFICATION_COUNT.incrementAndGet();
     }
 
     public String getAddress() {
         return address;
     }
 
-    public void setAddress(String address) {
+    public synchronized void setAddress(String address) {
         this.address = address;
+        MODIFICATION_COUNT.incrementAndGet();
     }
 
     @Override
@@ -0,0 +1,610 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.javaone.mailman.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Inverted index of the words in the bodies of the messages of a mbox
+ * file, kept in a sidecar file next to it. Messages are identified by
+ * their ordinal in the file. Each word maps to the ordinals of the
+ * messages containing it, stored as varint encoded deltas.
+ * <p>
+ * Words are the runs of letters and digits of a body, lower cased.
+ * Attachments are not indexed: MIME parts that are not text or that are
+ * base64 encoded, and lines that look like base64, are skipped. The
+ * messages they were skipped in are candidates of every lookup, as their
+ * bodies may still hold what is looked for. Substring and phrase lookups
+ * only return candidates, which are to be checked against the bodies.
+ * Substrings within words are found through a trigram index of the
+ * words, built on the first such lookup. Prefix lookups are exact for the
+ * messages that are fully indexed.
+ */
+final class ContentIndex {
+    private static final int MAGIC = 0x4D424654;
+    private static final int VERSION = 3;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Longer words are indexed by their start only
+    static final int MAX_WORD_LENGTH = 32;
+    // Lookups matching more than this share of the messages return null,
+    // as checking the candidates costs as much as checking every message
+    private static final double MAX_CANDIDATE_RATIO = 0.5;
+    // Shorter lines are indexed even if they look like base64
+    private static final int MIN_BASE64_LINE = 40;
+
+    private final TreeMap<String,Postings> words;
+    // The messages holding words longer than MAX_WORD_LENGTH
+    private final Postings truncated = new Postings();
+    // The messages with lines left out of the index
+    private final Postings partial = new Postings();
+    // The words and their postings in order, and the trigrams of the words,
+    // built on the first substring lookup
+    private String[] vocabulary;
+    private Postings[] vocabularyPostings;
+    private TrigramIndex vocabularyTrigrams;
+    private int messageCount;
+    private long mboxSize;
+    private long mboxModified;
+    private long lastPosition = -1;
+
+    ContentIndex() {
+        words = new TreeMap<String,Postings>();
+    }
+
+    /**
+     * Returns the number of messages indexed.
+     */
+    int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * Returns the size the mbox file had when the index was written.
+     */
+    long getMBoxSize() {
+        return mboxSize;
+    }
+
+    /**
+     * Returns true if the index was written for a file of the given size
+     * and modification time.
+     */
+    boolean matches(long size, long modified) {
+        return mboxSize == size && mboxModified == modified;
+    }
+
+    /**
+     * Returns the position of the last message indexed, or -1.
+     */
+    long getLastPosition() {
+        return lastPosition;
+    }
+
+    static File getIndexFile(File mboxFile) {
+        return new File(mboxFile.getPath() + ".fts");
+    }
+
+    /**
+     * Indexes the words of <code>text</code> as those of the message
+     * <code>ordinal</code>. Messages are added in order, though the last
+     * one may be added again when its body grew.
+     */
+    void add(int ordinal, String text) {
+        int length = text.length();
+        char[] word = new char[MAX_WORD_LENGTH];
+        // Headers of a MIME part follow a boundary up to an empty line
+        boolean partHeaders = false;
+        boolean skipPart = false;
+        boolean skipping = false;
+        int start = 0;
+        while (start < length) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) {
+                end = length;
+            }
+            int next = end + 1;
+            if (end > start && text.charAt(end - 1) == '\r') {
+                end--;
+            }
+            if (isBoundary(text, start, end)) {
+                partHeaders = true;
+                skipPart = false;
+                skipping = false;
+                addWords(ordinal, text, start, end, word);
+            } else if (skipping) {
+                // Inside an attachment, up to the next boundary
+                partial.add(ordinal);
+            } else if (partHeaders && end == start) {
+                partHeaders = false;
+                skipping = skipPart;
+            } else {
+                if (partHeaders && isAttachmentHeader(text, start, end)) {
+                    skipPart = true;
+                }
+                if (isBase64(text, start, end)) {
+                    partial.add(ordinal);
+                } else {
+                    addWords(ordinal, text, start, end, word);
+                }
+            }
+            start = next;
+        }
+        vocabulary = null;
+        vocabularyPostings = null;
+        vocabularyTrigrams = null;
+        messageCount = Math.max(messageCount, ordinal + 1);
+    }
+
+    private void addWords(int ordinal, String text, int start, int end,
+            char[] word) {
+        int i = start;
+        while (i < end) {
+            while (i < end && !isWordChar(text.charAt(i))) {
+                i++;
+            }
+            int wordLength = 0;
+            while (i < end && isWordChar(text.charAt(i))) {
+                if (wordLength < MAX_WORD_LENGTH) {
+                    word[wordLength++] = Character.toLowerCase(text.charAt(i));
+                } else if (wordLength == MAX_WORD_LENGTH) {
+                    truncated.add(ordinal);
+                    wordLength++;
+                }
+                i++;
+            }
+            if (wordLength > 0) {
+                String key = new String(word, 0,
+                        Math.min(wordLength, MAX_WORD_LENGTH));
+                Postings postings = words.get(key);
+                if (postings == null) {
+                    postings = new Postings();
+                    words.put(key, postings);
+                }
+                postings.add(ordinal);
+            }
+        }
+    }
+
+    // A MIME boundary is a line starting with two dashes and no spaces
+    private static boolean isBoundary(String text, int start, int end) {
+        if (end - start < 3 || !text.startsWith("--", start)) {
+            return false;
+        }
+        for (int i = start + 2; i < end; i++) {
+            if (Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns true for the headers of a MIME part that is not text, or is
+    // base64 encoded
+    private static boolean isAttachmentHeader(String text, int start,
+            int end) {
+        String line = text.substring(start, end).toLowerCase();
+        if (line.startsWith("content-type:")) {
+            return !line.contains("text/") && !line.contains("multipart/");
+        }
+        return line.startsWith("content-transfer-encoding:") &&
+                line.contains("base64");
+    }
+
+    private static boolean isBase64(String text, int start, int end) {
+        if (end - start < MIN_BASE64_LINE) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (!(c >= 'A' && c <= 'Z') && !(c >= 'a' && c <= 'z') &&
+                    !(c >= '0' && c <= '9') && c != '+' && c != '/' &&
+                    c != '=') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the messages that may contain <code>content</code>, or null
+     * if the index cannot narrow them down.
+     */
+    BitSet find(String content) {
+        List<String> terms = getWords(content);
+        if (terms.isEmpty()) {
+            return null;
+        }
+        boolean startsWord = !isWordChar(content.charAt(0));
+        boolean endsWord = !isWordChar(content.charAt(content.length() - 1));
+        BitSet result = null;
+        int last = terms.size() - 1;
+        for (int i = 0; i <= last; i++) {
+            String term = terms.get(i);
+            boolean start = i > 0 || startsWord;
+            boolean end = i < last || endsWord;
+            BitSet matches;
+            if (start && end) {
+                matches = findWord(term);
+            } else if (start) {
+                matches = findIndexedPrefix(term);
+            } else if (term.length() < 3 || term.length() >= MAX_WORD_LENGTH) {
+                // Too short for the trigrams, or may lie past the indexed
+                // start of a long word
+                continue;
+            } else {
+                matches = findContaining(term, end);
+            }
+            result = intersect(result, matches);
+        }
+        if (result != null) {
+            partial.addTo(result);
+        }
+        if (result != null &&
+                result.cardinality() > messageCount * MAX_CANDIDATE_RATIO) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the messages that may contain the words of
+     * <code>phrase</code>, or null if it has no words.
+     */
+    BitSet findPhrase(String phrase) {
+        BitSet result = null;
+        for (String term : getWords(phrase)) {
+            result = intersect(result, findWord(term));
+        }
+        if (result != null) {
+            partial.addTo(result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the messages containing a word starting with
+     * <code>prefix</code>, ignoring case, and the messages that are not
+     * fully indexed.
+     */
+    BitSet findPrefix(String prefix) {
+        BitSet result = findIndexedPrefix(prefix);
+        partial.addTo(result);
+        return result;
+    }
+
+    /**
+     * Returns the messages with lines left out of the index.
+     */
+    BitSet getPartialMessages() {
+        BitSet result = new BitSet();
+        partial.addTo(result);
+        return result;
+    }
+
+    private BitSet findIndexedPrefix(String prefix) {
+        prefix = truncate(toLowerCase(prefix));
+        BitSet result = new BitSet();
+        for (Postings postings : words.subMap(prefix,
+                prefix + Character.MAX_VALUE).values()) {
+            postings.addTo(result);
+        }
+        return result;
+    }
+
+    private BitSet findWord(String word) {
+        BitSet result = new BitSet();
+        if (word.length() >= MAX_WORD_LENGTH) {
+            // All words starting the same are indexed under the same key
+            return findIndexedPrefix(word);
+        }
+        Postings postings = words.get(word);
+        if (postings != null) {
+            postings.addTo(result);
+        }
+        return result;
+    }
+
+    private BitSet findContaining(String part, boolean suffix) {
+        BitSet result = new BitSet();
+        // The part may lie past the indexed start of a long word
+        truncated.addTo(result);
+        synchronized (this) {
+            if (vocabularyTrigrams == null) {
+                buildVocabulary();
+            }
+        }
+        BitSet ids = vocabularyTrigrams.find(part);
+        for (int i = ids.nextSetBit(0); i >= 0; i = ids.nextSetBit(i + 1)) {
+            String word = vocabulary[i];
+            if (suffix ? word.endsWith(part) : word.contains(part)) {
+                vocabularyPostings[i].addTo(result);
+            }
+        }
+        return result;
+    }
+
+    private void buildVocabulary() {
+        String[] words = new String[this.words.size()];
+        Postings[] postings = new Postings[words.length];
+        TrigramIndex trigrams = new TrigramIndex();
+        int id = 0;
+        for (Map.Entry<String,Postings> entry : this.words.entrySet()) {
+            words[id] = entry.getKey();
+            postings[id] = entry.getValue();
+            trigrams.add(id, words[id]);
+            id++;
+        }
+        vocabulary = words;
+        vocabularyPostings = postings;
+        vocabularyTrigrams = trigrams;
+    }
+
+    private static BitSet intersect(BitSet result, BitSet matches) {
+        if (result == null) {
+            return matches;
+        }
+        result.and(matches);
+        return result;
+    }
+
+    /**
+     * Returns true if <code>text</code> holds the words of
+     * <code>phrase</code> one after the other, ignoring case.
+     */
+    static boolean containsPhrase(String text, String phrase) {
+        List<String> terms = getWords(phrase);
+        if (terms.isEmpty()) {
+            return false;
+        }
+        List<String> words = getWords(text);
+        int count = terms.size();
+        outer:
+        for (int i = 0; i <= words.size() - count; i++) {
+            for (int j = 0; j < count; j++) {
+                if (!words.get(i + j).equals(terms.get(j))) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if a word of <code>text</code> starts with
+     * <code>prefix</code>, ignoring case.
+     */
+    static boolean containsPrefix(String text, String prefix) {
+        prefix = toLowerCase(prefix);
+        for (String word : getWords(text)) {
+            if (word.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> getWords(String text) {
+        List<String> words = new ArrayList<String>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !isWordChar(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && isWordChar(text.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                words.add(toLowerCase(text.substring(start, i)));
+            }
+        }
+        return words;
+    }
+
+    // Lower cases char by char, as words are when indexed
+    private static String toLowerCase(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    private static String truncate(String word) {
+        return (word.length() > MAX_WORD_LENGTH) ?
+            word.substring(0, MAX_WORD_LENGTH) : word;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * Reads an index. Returns null if there is no index, or if it was
+     * written by another version.
+     */
+    static ContentIndex read(File indexFile) {
+        if (!indexFile.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(indexFile), BUFFER_SIZE));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                ContentIndex index = new ContentIndex();
+                index.mboxSize = in.readLong();
+                index.mboxModified = in.readLong();
+                index.messageCount = in.readInt();
+                index.lastPosition = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    byte[] word = new byte[in.readUnsignedShort()];
+                    in.readFully(word);
+                    Postings postings = new Postings();
+                    readPostings(in, postings);
+                    index.words.put(new String(word, UTF_8), postings);
+                }
+                readPostings(in, index.truncated);
+                readPostings(in, index.partial);
+                return index;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // A truncated or damaged index is rebuilt from the mbox file
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Writes the index of <code>messages</code>, which were parsed from
+     * the first <code>size</code> bytes of a mbox file last modified at
+     * <code>modified</code>. The file is replaced atomically.
+     */
+    void write(File indexFile, long size, long modified,
+            List<Message> messages) throws IOException {
+        mboxSize = size;
+        mboxModified = modified;
+        lastPosition = messages.isEmpty() ? -1 :
+            messages.get(messages.size() - 1).getPosition();
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile), BUFFER_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mboxSize);
+            out.writeLong(mboxModified);
+            out.writeInt(messageCount);
+            out.writeLong(lastPosition);
+            out.writeInt(words.size());
+            for (Map.Entry<String,Postings> entry : words.entrySet()) {
+                byte[] word = entry.getKey().getBytes(UTF_8);
+                out.writeShort(word.length);
+                out.write(word);
+                writePostings(out, entry.getValue());
+            }
+            writePostings(out, truncated);
+            writePostings(out, partial);
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void readPostings(DataInputStream in, Postings postings)
+            throws IOException {
+        postings.last = in.readInt();
+        postings.length = in.readInt();
+        postings.data = new byte[postings.length];
+        in.readFully(postings.data);
+    }
+
+    private static void writePostings(DataOutputStream out,
+            Postings postings) throws IOException {
+        out.writeInt(postings.last);
+        out.writeInt(postings.length);
+        out.write(postings.data, 0, postings.length);
+    }
+
+    /**
+     * Ascending message ordinals, each stored as the varint of its
+     * distance to the previous one.
+     */
+    private static final class Postings {
+        byte[] data = new byte[4];
+        int length;
+        int last = -1;
+
+        void add(int ordinal) {
+            if (ordinal <= last) {
+                return;
+            }
+            int delta = ordinal - last;
+            last = ordinal;
+            if (length + 5 > data.length) {
+                byte[] newData = new byte[Math.max(data.length * 2,
+                        length + 5)];
+                System.arraycopy(data, 0, newData, 0, length);
+                data = newData;
+            }
+            while ((delta & ~0x7F) != 0) {
+                data[length++] = (byte)((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte)delta;
+        }
+
+        void addTo(BitSet set) {
+            int ordinal = -1;
+            int i = 0;
+            while (i < length) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[i++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                ordinal += delta;
+                set.set(ordinal);
+            }
+        }
+    }
+}
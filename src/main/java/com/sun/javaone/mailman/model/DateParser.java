@@ -0,0 +1,315 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.sun.javaone.mailman.model;
+
+/**
+ * Reads RFC 2822 dates, and the RFC 822 and ctime forms found in older
+ * mail, straight from the bytes of a header. The parser is lenient: day
+ * names, seconds and zones are optional, months and zones may be spelled
+ * out, years may have two digits and trailing comments are ignored.
+ * Not thread safe; each header decoder has its own parser, and with it
+ * its own cache of the last day and zone seen.
+ */
+final class DateParser {
+    /**
+     * Returned by <code>parse</code> for dates it cannot read.
+     */
+    static final long NO_DATE = Long.MIN_VALUE;
+
+    private static final String MONTHS = "janfebmaraprmayjunjulaugsepoctnovdec";
+    private static final String[] ZONES = {
+        "ut", "utc", "gmt", "z", "est", "edt", "cst", "cdt",
+        "mst", "mdt", "pst", "pdt"
+    };
+    private static final int[] ZONE_OFFSETS = {
+        0, 0, 0, 0, -5 * 60, -4 * 60, -6 * 60, -5 * 60,
+        -7 * 60, -6 * 60, -8 * 60, -7 * 60
+    };
+
+    private byte[] bytes;
+    private int position;
+    private int end;
+
+    // Messages of a mailbox mostly follow each other in time, so the start
+    // of the last day read, in its zone, is kept
+    private long cachedKey = -1;
+    private long cachedMillis;
+
+    /**
+     * Returns the date in <code>bytes</code> from <code>start</code> to
+     * <code>end</code> in milliseconds since the epoch, or
+     * <code>NO_DATE</code> if there is none.
+     */
+    long parse(byte[] bytes, int start, int end) {
+        this.bytes = bytes;
+        this.position = start;
+        this.end = end;
+        try {
+            return parse();
+        } finally {
+            this.bytes = null;
+        }
+    }
+
+    private long parse() {
+        skipSpaces();
+        int day;
+        int month;
+        int year = -1;
+        if (isLetter(peek())) {
+            // Either a day name, or a month in the ctime form
+            int start = position;
+            skipLetters();
+            if (skip(',') || !isMonth(start)) {
+                skipSpaces();
+                start = position;
+                skipLetters();
+            }
+            if (position > start) {
+                // Thu Aug 10 23:56:53 2006
+                position = start;
+                month = readMonth();
+                if (month < 0 || !skipSeparator()) {
+                    return NO_DATE;
+                }
+                day = readNumber(1, 2);
+                if (day < 0 || !skipSeparator()) {
+                    return NO_DATE;
+                }
+                return parseTime(year, month, day);
+            }
+        }
+        // [Thu, ]10 Aug 2006 23:56:53 +0000
+        day = readNumber(1, 2);
+        if (day < 0 || !skipSeparator()) {
+            return NO_DATE;
+        }
+        month = readMonth();
+        if (month < 0 || !skipSeparator()) {
+            return NO_DATE;
+        }
+        year = readYear();
+        if (year < 0 || !skipSeparator()) {
+            return NO_DATE;
+        }
+        return parseTime(year, month, day);
+    }
+
+    // Reads the time, then the year if it is not known yet, then the zone
+    private long parseTime(int year, int month, int day) {
+        int hours = readNumber(1, 2);
+        if (hours < 0 || !skip(':')) {
+            return NO_DATE;
+        }
+        int minutes = readNumber(1, 2);
+        if (minutes < 0) {
+            return NO_DATE;
+        }
+        int seconds = 0;
+        if (skip(':')) {
+            seconds = readNumber(1, 2);
+            if (seconds < 0) {
+                return NO_DATE;
+            }
+        }
+        skipSpaces();
+        int offset;
+        if (year < 0) {
+            // The zone may come before the year in the ctime form
+            offset = isLetter(peek()) ? readZone() : 0;
+            skipSpaces();
+            year = readYear();
+            if (year < 0) {
+                return NO_DATE;
+            }
+            skipSpaces();
+            if (offset == 0) {
+                offset = readZone();
+            }
+        } else {
+            offset = readZone();
+        }
+
+        // Fields out of range carry over, as with a lenient DateFormat;
+        // the key leaves room for the two digit days that allows
+        long key = (((long)year * 16 + month) * 128 + day) * 16384 +
+                offset + 8192;
+        if (key != cachedKey) {
+            long days = getDays(year, month, 1) + day - 1;
+            cachedMillis = (days * 24 * 60 - offset) * 60 * 1000;
+            cachedKey = key;
+        }
+        return cachedMillis + ((hours * 60L + minutes) * 60 + seconds) * 1000;
+    }
+
+    // Reads a zone in minutes east of UTC; zones that are missing or
+    // unknown are taken as UTC, as RFC 2822 asks for military zones
+    private int readZone() {
+        byte sign = peek();
+        if (sign == '+' || sign == '-') {
+            position++;
+            int hours = readNumber(2, 2);
+            if (hours < 0) {
+                return 0;
+            }
+            skip(':');
+            int minutes = readNumber(2, 2);
+            int offset = hours * 60 + (minutes < 0 ? 0 : minutes);
+            return (sign == '-') ? -offset : offset;
+        }
+        int start = position;
+        skipLetters();
+        int length = position - start;
+        for (int i = 0; i < ZONES.length; i++) {
+            if (ZONES[i].length() == length && matches(ZONES[i], start)) {
+                return ZONE_OFFSETS[i];
+            }
+        }
+        return 0;
+    }
+
+    // Two digit years are taken as 1950 to 2049, three digit ones as
+    // counted from 1900, as RFC 2822 asks
+    private int readYear() {
+        int start = position;
+        int year = readNumber(2, 4);
+        if (year < 0) {
+            return -1;
+        }
+        switch (position - start) {
+            case 2:
+                return year + (year < 50 ? 2000 : 1900);
+            case 3:
+                return year + 1900;
+            default:
+                return year;
+        }
+    }
+
+    // Reads a month, by its first three letters, and returns its number
+    // from 1, or -1
+    private int readMonth() {
+        int start = position;
+        skipLetters();
+        if (position - start < 3) {
+            return -1;
+        }
+        for (int month = 0; month < 12; month++) {
+            if (matches(MONTHS.substring(month * 3, month * 3 + 3), start)) {
+                return month + 1;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isMonth(int start) {
+        int current = position;
+        position = start;
+        int month = readMonth();
+        position = current;
+        return month > 0;
+    }
+
+    private boolean matches(String lowerCase, int start) {
+        for (int i = 0; i < lowerCase.length(); i++) {
+            if ((bytes[start + i] | 0x20) != lowerCase.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Reads from min to max digits, returns -1 if there are less
+    private int readNumber(int min, int max) {
+        int value = 0;
+        int count = 0;
+        while (count < max && position < end &&
+                bytes[position] >= '0' && bytes[position] <= '9') {
+            value = value * 10 + bytes[position++] - '0';
+            count++;
+        }
+        return (count < min) ? -1 : value;
+    }
+
+    private byte peek() {
+        return (position < end) ? bytes[position] : 0;
+    }
+
+    private boolean skip(char c) {
+        if (position < end && bytes[position] == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    // Skips the spaces or the dash between the fields of a date
+    private boolean skipSeparator() {
+        if (skip('-')) {
+            return true;
+        }
+        int start = position;
+        skipSpaces();
+        return position > start;
+    }
+
+    private void skipSpaces() {
+        while (position < end &&
+                (bytes[position] == ' ' || bytes[position] == '\t')) {
+            position++;
+        }
+    }
+
+    private void skipLetters() {
+        while (position < end && isLetter(bytes[position])) {
+            position++;
+        }
+    }
+
+    private static boolean isLetter(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    // Days from 1970-01-01 to a date of the proleptic Gregorian calendar
+    private static long getDays(int year, int month, int day) {
+        if (month <= 2) {
+            year--;
+        }
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 +
+                day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 +
+                dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
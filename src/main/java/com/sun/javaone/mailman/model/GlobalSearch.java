@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.javaone.mailman.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A search of every mailbox and folder of several accounts, newest
+ * messages first. The mailboxes are searched concurrently, each sorting
+ * its own matches by date, and the pages are merged from these lists
+ * as they are asked for. Each mailbox search first notes the date of the
+ * newest message of its mailbox, so a page is returned as soon as the
+ * searches of the mailboxes that may hold newer matches are done, while
+ * mailboxes of older messages are still being searched.
+ */
+public final class GlobalSearch {
+    // Searches read bodies from disk, so they get threads of their own
+    // instead of blocking those of the common fork/join pool
+    private static final ExecutorService SEARCHER =
+            Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Global search");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final Comparator<Message> NEWEST_FIRST =
+            new Comparator<Message>() {
+        @Override
+        public int compare(Message m1, Message m2) {
+            long date1 = m1.getDateTime();
+            long date2 = m2.getDateTime();
+            return (date1 > date2) ? -1 : ((date1 == date2) ? 0 : 1);
+        }
+    };
+    private static final Comparator<Source> NEXT_NEWEST_FIRST =
+            new Comparator<Source>() {
+        @Override
+        public int compare(Source s1, Source s2) {
+            return NEWEST_FIRST.compare(s1.peek(), s2.peek());
+        }
+    };
+
+    // The searches whose matches are not merged yet
+    private final List<Search> searches;
+    private final PriorityQueue<Source> sources;
+
+    /**
+     * Starts searching the mailboxes of <code>accounts</code> for the
+     * messages matching <code>query</code>.
+     */
+    public GlobalSearch(Account[] accounts, MessageQuery query) {
+        if (accounts == null || query == null) {
+            throw new IllegalArgumentException(
+                    "Accounts and query cannot be null.");
+        }
+
+        List<MailBox> mailBoxes = new ArrayList<MailBox>();
+        for (Account account : accounts) {
+            for (MailBox mailBox : account.getMailBoxs()) {
+                addMailBoxes(mailBox, mailBoxes);
+            }
+        }
+
+        searches = new ArrayList<Search>(mailBoxes.size());
+        sources = new PriorityQueue<Source>(Math.max(1, mailBoxes.size()),
+                NEXT_NEWEST_FIRST);
+        for (MailBox mailBox : mailBoxes) {
+            Search search = new Search(mailBox, query);
+            search.future = SEARCHER.submit(search);
+            searches.add(search);
+        }
+    }
+
+    private static void addMailBoxes(MailBox mailBox, List<MailBox> mailBoxes) {
+        mailBoxes.add(mailBox);
+        for (MailBox folder : mailBox.getFolderSnapshot()) {
+            addMailBoxes(folder, mailBoxes);
+        }
+    }
+
+    /**
+     * Returns the next <code>size</code> matches at most, waiting only for
+     * the mailbox searches that may hold newer matches than those returned.
+     * An empty page means every match was returned.
+     *
+     * @throws InterruptedException if the thread is interrupted while
+     *         waiting; the search can then be resumed by calling this
+     *         method again
+     */
+    public synchronized List<Message> nextPage(int size)
+            throws InterruptedException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Page size must be positive.");
+        }
+
+        List<Message> page = new ArrayList<Message>(
+                Math.min(size, 1024));
+        while (page.size() < size) {
+            Search pending = getNewestPending();
+            Source source = sources.peek();
+            if (pending != null && (source == null ||
+                    pending.newest > source.peek().getDateTime())) {
+                merge(pending);
+                continue;
+            }
+            if (source == null) {
+                break;
+            }
+            sources.poll();
+            page.add(source.next());
+            if (source.peek() != null) {
+                sources.add(source);
+            }
+        }
+        return page;
+    }
+
+    // The search not merged yet that may hold the newest match
+    private Search getNewestPending() {
+        Search newest = null;
+        for (Search search : searches) {
+            if (newest == null || search.newest > newest.newest) {
+                newest = search;
+            }
+        }
+        return newest;
+    }
+
+    private void merge(Search search) throws InterruptedException {
+        try {
+            List<Message> messages = search.future.get();
+            if (!messages.isEmpty()) {
+                sources.add(new Source(messages));
+            }
+        } catch (CancellationException e) {
+            // cancelled, nothing to merge
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        searches.remove(search);
+    }
+
+    /**
+     * Returns true if <code>nextPage</code> may return more matches.
+     */
+    public synchronized boolean hasMore() {
+        return !searches.isEmpty() || !sources.isEmpty();
+    }
+
+    /**
+     * Stops the mailbox searches not started yet.
+     */
+    public synchronized void cancel() {
+        for (Search search : searches) {
+            search.future.cancel(false);
+        }
+    }
+
+
+    // The search of one mailbox
+    private static final class Search implements Callable<List<Message>> {
+        private final MailBox mailBox;
+        private final MessageQuery query;
+        private Future<List<Message>> future;
+        // The date of the newest message of the mailbox, or the latest
+        // possible date until it is known
+        private volatile long newest = Long.MAX_VALUE;
+
+        Search(MailBox mailBox, MessageQuery query) {
+            this.mailBox = mailBox;
+            this.query = query;
+        }
+
+        @Override
+        public List<Message> call() {
+            newest = mailBox.getNewestDate();
+            List<Message> messages = mailBox.findMessages(query);
+            Collections.sort(messages, NEWEST_FIRST);
+            return messages;
+        }
+    }
+
+    // The sorted matches of one mailbox
+    private static final class Source {
+        private final List<Message> messages;
+        private int next;
+
+        Source(List<Message> messages) {
+            this.messages = messages;
+        }
+
+        Message peek() {
+            return (next < messages.size()) ? messages.get(next) : null;
+        }
+
+        Message next() {
+            return messages.get(next++);
+        }
+    }
+}
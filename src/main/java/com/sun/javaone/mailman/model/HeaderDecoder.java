@@ -0,0 +1,266 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.javaone.mailman.model;
+
+import com.sun.javaone.mailman.data.InputByteBuffer;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Decodes header fields straight from the bytes of a mailbox. A field is
+ * unfolded into a byte array that is reused from field to field; address
+ * lists are split on the commas outside of quotes and angle brackets, and
+ * dates are read by a <code>DateParser</code>.
+ * Contacts are looked up by the bytes of their address, so the strings
+ * of a contact are only made the first time it is seen. Not thread safe;
+ * each parser has its own decoder.
+ */
+final class HeaderDecoder {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Contact[] NO_CONTACTS = new Contact[0];
+
+    private byte[] field;
+    private int length;
+
+    // Contacts by the bytes they were read from, in an open addressed
+    // table
+    private byte[][] contactKeys;
+    private Contact[] contactValues;
+    private int contactCount;
+
+    private Contact[] contacts;
+    private final DateParser dateParser = new DateParser();
+
+    HeaderDecoder() {
+        field = new byte[256];
+        contactKeys = new byte[256][];
+        contactValues = new Contact[256];
+        contacts = new Contact[8];
+    }
+
+    /**
+     * Reads the field at the position of <code>buffer</code>, just past its
+     * colon, up to the end of its last line.
+     */
+    void read(InputByteBuffer buffer) throws IOException {
+        length = 0;
+        byte b;
+        buffer.get();
+        for (;;) {
+            b = buffer.get();
+            if (b == '\r') {
+                b = buffer.get();
+                if (b == '\n') {
+                    b = buffer.get();
+                    if (b == ' ' || b == '\t') {
+                        while (b == ' ' || b == '\t') {
+                            b = buffer.get();
+                        }
+                        append((byte)' ');
+                        append(b);
+                    } else {
+                        buffer.rewind(1);
+                        break;
+                    }
+                } else {
+                    append(b);
+                }
+            } else {
+                append(b);
+            }
+        }
+    }
+
+    private void append(byte b) {
+        if (length == field.length) {
+            field = Arrays.copyOf(field, length * 2);
+        }
+        field[length++] = b;
+    }
+
+    /**
+     * Returns the field read last as text.
+     */
+    String getText() {
+        return new String(field, 0, length, ISO_8859_1);
+    }
+
+    /**
+     * Returns the field read last as a single address.
+     */
+    Contact getContact() {
+        int start = skipSpaces(0, length);
+        int end = trimSpaces(start, length);
+        return (start == end) ? null : getContact(start, end);
+    }
+
+    /**
+     * Returns the field read last as a list of addresses.
+     */
+    Contact[] getContacts() {
+        int count = 0;
+        int start = 0;
+        boolean quoted = false;
+        int angles = 0;
+        for (int i = 0; i <= length; i++) {
+            byte b = (i < length) ? field[i] : (byte)',';
+            if (b == '"' && (i == 0 || field[i - 1] != '\\')) {
+                quoted = !quoted;
+            } else if (!quoted && b == '<') {
+                angles++;
+            } else if (!quoted && b == '>' && angles > 0) {
+                angles--;
+            } else if (b == ',' && ((!quoted && angles == 0) || i == length)) {
+                int from = skipSpaces(start, i);
+                int to = trimSpaces(from, i);
+                if (from < to) {
+                    if (count == contacts.length) {
+                        contacts = Arrays.copyOf(contacts, count * 2);
+                    }
+                    contacts[count++] = getContact(from, to);
+                }
+                start = i + 1;
+            }
+        }
+        return (count == 0) ? NO_CONTACTS : Arrays.copyOf(contacts, count);
+    }
+
+    private int skipSpaces(int start, int end) {
+        while (start < end && (field[start] == ' ' || field[start] == '\t')) {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimSpaces(int start, int end) {
+        while (end > start &&
+                (field[end - 1] == ' ' || field[end - 1] == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+    private Contact getContact(int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + field[i];
+        }
+        int mask = contactKeys.length - 1;
+        int slot = hash & mask;
+        byte[] key;
+        while ((key = contactKeys[slot]) != null) {
+            if (key.length == end - start && regionEquals(key, start)) {
+                return contactValues[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        Contact contact = createContact(start, end);
+        contactKeys[slot] = Arrays.copyOfRange(field, start, end);
+        contactValues[slot] = contact;
+        if (++contactCount * 2 > contactKeys.length) {
+            growContacts();
+        }
+        return contact;
+    }
+
+    private boolean regionEquals(byte[] key, int start) {
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != field[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void growContacts() {
+        byte[][] keys = contactKeys;
+        Contact[] values = contactValues;
+        contactKeys = new byte[keys.length * 2][];
+        contactValues = new Contact[keys.length * 2];
+        int mask = contactKeys.length - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                int slot = Arrays.hashCode(keys[i]) & mask;
+                while (contactKeys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                contactKeys[slot] = keys[i];
+                contactValues[slot] = values[i];
+            }
+        }
+    }
+
+    // "Display Name <address>", or a bare address
+    private Contact createContact(int start, int end) {
+        if (end - start >= 5 && field[end - 1] == '>') {
+            int lastClose = start;
+            for (int i = end - 2; i > start; i--) {
+                if (field[i] == '>') {
+                    lastClose = i;
+                    break;
+                }
+            }
+            for (int i = start + 1; i < end - 3; i++) {
+                if (field[i] == ' ' && field[i + 1] == '<' &&
+                        i + 2 > lastClose) {
+                    String displayName = getString(start, i);
+                    String firstName = "";
+                    String lastName = "";
+                    int space = displayName.indexOf(' ');
+                    if (space >= 0) {
+                        firstName = displayName.substring(0, space);
+                        lastName = displayName.substring(space + 1);
+                    }
+                    return Contact.getContact(firstName, lastName,
+                            displayName, getString(i + 2, end - 1));
+                }
+            }
+        }
+        String address = getString(start, end);
+        return Contact.getContact(null, null, address, address);
+    }
+
+    private String getString(int start, int end) {
+        return new String(field, start, end - start, ISO_8859_1);
+    }
+
+    /**
+     * Returns the field read last as a date, or
+     * <code>DateParser.NO_DATE</code> if it is not one.
+     */
+    long getDate() {
+        return dateParser.parse(field, 0, length);
+    }
+}
@@ -0,0 +1,428 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.javaone.mailman.model;
+
+import binding.collections.ObservableList;
+import binding.collections.ObservableListListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Searches the headers of the messages of a mailbox, in the order of its
+ * messages list. Rows are read from the header tables of the messages,
+ * whose senders and subjects are ids, so a search tests each distinct
+ * contact or subject once and then compares ids instead of strings.
+ * Trigram indexes of the contacts and of the subjects of each table
+ * narrow down the ones tested, whether or not the query ignores case.
+ * The store follows the messages list through its events, which come on
+ * the thread changing the list. Searches may come from other threads and
+ * only read the rows kept here, under the lock of the store, never the
+ * list itself. Contacts and subjects of removed rows are kept, as they
+ * are only used to narrow down the rows tested.
+ */
+final class HeaderStore implements ObservableListListener {
+    private final ObservableList<Message> messages;
+    private int size;
+    private Message[] rows = new Message[0];
+
+    // The ids of the senders and recipients of the rows
+    private final BitSet contacts = new BitSet();
+    // Null until a search needs it
+    private TrigramIndex contactTrigrams;
+    private int lastIndexedContact;
+    private int contactModificationCount;
+    private final Map<HeaderTable,Subjects> subjects =
+            new IdentityHashMap<HeaderTable,Subjects>();
+
+    HeaderStore(ObservableList<Message> messages) {
+        this.messages = messages;
+        messages.addObservableListListener(this);
+        Message[] all = messages.toArray(new Message[0]);
+        insert(0, all);
+    }
+
+    /**
+     * Returns the messages matching the header conditions of
+     * <code>query</code>, in the order of the messages list. The rows are
+     * checked outside of the lock, so changes to the list are not held up
+     * by a long search.
+     */
+    List<Message> find(MessageQuery query) {
+        Matcher matcher;
+        Message[] snapshot;
+        synchronized (this) {
+            matcher = getMatcher(query);
+            snapshot = getMessages();
+        }
+        List<Message> result = new ArrayList<Message>();
+        for (Message message : snapshot) {
+            if (matcher.matches(message)) {
+                result.add(message);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy of the rows, in the order of the messages list.
+     */
+    synchronized Message[] getMessages() {
+        return Arrays.copyOf(rows, size);
+    }
+
+    /**
+     * Returns a matcher of the header conditions of <code>query</code>,
+     * for the messages of the store at the time of the call.
+     */
+    synchronized Matcher getMatcher(MessageQuery query) {
+        boolean ignoreCase = query.isIgnoreCase();
+        String text = query.getSenderOrSubject();
+        return new Matcher(query,
+                (query.getSender() == null) ? null :
+                    findContacts(query.getSender(), ignoreCase),
+                (query.getRecipient() == null) ? null :
+                    findContacts(query.getRecipient(), ignoreCase),
+                (query.getSubject() == null) ? null :
+                    findSubjects(query.getSubject(), ignoreCase),
+                (text == null) ? null : findContacts(text, ignoreCase),
+                (text == null) ? null : findSubjects(text, ignoreCase));
+    }
+
+    /**
+     * Returns the date of the newest message, or
+     * <code>Long.MIN_VALUE</code> if there are none.
+     */
+    synchronized long getNewestDate() {
+        long newest = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            newest = Math.max(newest, rows[i].getDateTime());
+        }
+        return newest;
+    }
+
+    private static boolean hasRecipient(HeaderTable table, int row,
+            BitSet recipientSet) {
+        int[] to = table.getList(row, HeaderTable.TO);
+        if (to != null) {
+            for (int id : to) {
+                if (recipientSet.get(id)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(BitSet set, int id) {
+        return set != null && id >= 0 && set.get(id);
+    }
+
+    private BitSet findContacts(String text, boolean ignoreCase) {
+        if (contactTrigrams == null ||
+                contactModificationCount != Contact.getModificationCount()) {
+            // Names changed since the contacts were indexed
+            contactModificationCount = Contact.getModificationCount();
+            contactTrigrams = new TrigramIndex();
+            lastIndexedContact = -1;
+            for (int id = contacts.nextSetBit(0); id >= 0;
+                    id = contacts.nextSetBit(id + 1)) {
+                indexContact(id);
+            }
+        }
+        BitSet result = contactTrigrams.find(text);
+        if (result == null) {
+            result = (BitSet)contacts.clone();
+        }
+        for (int id = result.nextSetBit(0); id >= 0;
+                id = result.nextSetBit(id + 1)) {
+            Contact contact = Contact.getContact(id);
+            if (!contains(contact.getDisplayName(), text, ignoreCase) &&
+                    !contains(contact.getFirstName(), text, ignoreCase) &&
+                    !contains(contact.getLastName(), text, ignoreCase) &&
+                    !contains(contact.getAddress(), text, ignoreCase)) {
+                result.clear(id);
+            }
+        }
+        return result;
+    }
+
+    // The ids of the subjects containing text, by table
+    private Map<HeaderTable,BitSet> findSubjects(String text,
+            boolean ignoreCase) {
+        Map<HeaderTable,BitSet> result =
+                new IdentityHashMap<HeaderTable,BitSet>();
+        for (Subjects tableSubjects : subjects.values()) {
+            result.put(tableSubjects.table,
+                    tableSubjects.find(text, ignoreCase));
+        }
+        return result;
+    }
+
+    private static boolean contains(String value, String text,
+            boolean ignoreCase) {
+        if (value == null) {
+            return false;
+        }
+        if (!ignoreCase) {
+            return value.contains(text);
+        }
+        int length = text.length();
+        for (int i = 0, last = value.length() - length; i <= last; i++) {
+            if (value.regionMatches(true, i, text, 0, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Inserts rows at index, as messages were inserted in the list
+    private void insert(int index, Message[] added) {
+        int length = added.length;
+        if (rows.length < size + length) {
+            rows = Arrays.copyOf(rows, Math.max(rows.length * 2,
+                    size + length));
+        }
+        System.arraycopy(rows, index, rows, index + length, size - index);
+        System.arraycopy(added, 0, rows, index, length);
+        size += length;
+        add(added);
+    }
+
+    // Adds the contacts and subjects of the messages
+    private void add(Message[] added) {
+        HeaderTable table = null;
+        Subjects tableSubjects = null;
+        for (Message message : added) {
+            if (message.getHeaderTable() != table) {
+                table = message.getHeaderTable();
+                tableSubjects = subjects.get(table);
+                if (tableSubjects == null) {
+                    tableSubjects = new Subjects(table);
+                    subjects.put(table, tableSubjects);
+                }
+            }
+            int row = message.getRow();
+            addContact(table.getSenderId(row));
+            int[] to = table.getList(row, HeaderTable.TO);
+            if (to != null) {
+                for (int id : to) {
+                    addContact(id);
+                }
+            }
+            tableSubjects.add(table.getSubjectId(row));
+        }
+    }
+
+    private void addContact(int id) {
+        if (id < 0 || contacts.get(id)) {
+            return;
+        }
+        contacts.set(id);
+        if (contactTrigrams != null) {
+            if (id > lastIndexedContact) {
+                indexContact(id);
+            } else {
+                // Trigram ids must ascend; index again on the next search
+                contactTrigrams = null;
+            }
+        }
+    }
+
+    private void indexContact(int id) {
+        AddressBook.indexContact(contactTrigrams, id,
+                Contact.getContact(id));
+        lastIndexedContact = id;
+    }
+
+    // The listener interface of the binding library takes raw lists; the
+    // list is always the messages list
+    @Override
+    @SuppressWarnings("rawtypes")
+    public synchronized void listElementsAdded(ObservableList list,
+            int index, int length) {
+        Message[] added = new Message[length];
+        for (int i = 0; i < length; i++) {
+            added[i] = messages.get(index + i);
+        }
+        insert(index, added);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public synchronized void listElementsRemoved(ObservableList list,
+            int index, List elements) {
+        int length = elements.size();
+        System.arraycopy(rows, index + length, rows, index,
+                size - index - length);
+        Arrays.fill(rows, size - length, size, null);
+        size -= length;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public synchronized void listElementReplaced(ObservableList list,
+            int index, Object oldElement) {
+        rows[index] = messages.get(index);
+        add(new Message[] { rows[index] });
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void listElementPropertyChanged(ObservableList list, int index) {
+    }
+
+
+    /**
+     * The header conditions of a query, as the ids of the contacts and
+     * subjects that match them. Reads the columns of the messages without
+     * the lock of the store. Not thread safe.
+     */
+    static final class Matcher {
+        private final boolean senderOrSubject;
+        private final long after;
+        private final long before;
+        private final BitSet senderSet;
+        private final BitSet recipientSet;
+        private final Map<HeaderTable,BitSet> subjectSets;
+        private final BitSet textSenderSet;
+        private final Map<HeaderTable,BitSet> textSubjectSets;
+
+        // The table of the message checked last, and its subject sets
+        private HeaderTable table;
+        private BitSet subjectSet;
+        private BitSet textSubjectSet;
+
+        private Matcher(MessageQuery query, BitSet senderSet,
+                BitSet recipientSet, Map<HeaderTable,BitSet> subjectSets,
+                BitSet textSenderSet,
+                Map<HeaderTable,BitSet> textSubjectSets) {
+            senderOrSubject = query.getSenderOrSubject() != null;
+            after = query.getAfter();
+            before = query.getBefore();
+            this.senderSet = senderSet;
+            this.recipientSet = recipientSet;
+            this.subjectSets = subjectSets;
+            this.textSenderSet = textSenderSet;
+            this.textSubjectSets = textSubjectSets;
+        }
+
+        boolean matches(Message message) {
+            int row = message.getRow();
+            if (message.getHeaderTable() != table) {
+                table = message.getHeaderTable();
+                subjectSet = (subjectSets == null) ? null :
+                    subjectSets.get(table);
+                textSubjectSet = (textSubjectSets == null) ? null :
+                    textSubjectSets.get(table);
+            }
+            if (senderSet != null &&
+                    !contains(senderSet, table.getSenderId(row))) {
+                return false;
+            }
+            if (subjectSets != null &&
+                    !contains(subjectSet, table.getSubjectId(row))) {
+                return false;
+            }
+            if (senderOrSubject &&
+                    !contains(textSenderSet, table.getSenderId(row)) &&
+                    !contains(textSubjectSet, table.getSubjectId(row))) {
+                return false;
+            }
+            long date = table.getDate(row);
+            if (date < after || date >= before) {
+                return false;
+            }
+            return recipientSet == null ||
+                    hasRecipient(table, row, recipientSet);
+        }
+    }
+
+    /**
+     * The ids of the subjects of the rows from one header table, and a
+     * trigram index of them built by the first search.
+     */
+    private static final class Subjects {
+        private final HeaderTable table;
+        private final BitSet ids = new BitSet();
+        private TrigramIndex trigrams;
+        private int lastIndexed = -1;
+
+        Subjects(HeaderTable table) {
+            this.table = table;
+        }
+
+        void add(int id) {
+            if (id < 0 || ids.get(id)) {
+                return;
+            }
+            ids.set(id);
+            if (trigrams != null) {
+                if (id > lastIndexed) {
+                    index(id);
+                } else {
+                    trigrams = null;
+                }
+            }
+        }
+
+        private void index(int id) {
+            trigrams.add(id, table.getString(id));
+            lastIndexed = id;
+        }
+
+        BitSet find(String text, boolean ignoreCase) {
+            if (trigrams == null) {
+                trigrams = new TrigramIndex();
+                for (int id = ids.nextSetBit(0); id >= 0;
+                        id = ids.nextSetBit(id + 1)) {
+                    index(id);
+                }
+            }
+            BitSet result = trigrams.find(text);
+            if (result == null) {
+                result = (BitSet)ids.clone();
+            }
+            for (int id = result.nextSetBit(0); id >= 0;
+                    id = result.nextSetBit(id + 1)) {
+                if (!contains(table.getString(id), text, ignoreCase)) {
+                    result.clear(id);
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.sun.javaone.mailman.model;
+
+/**
+ * The headers of the messages of a mailbox, stored by row. A
+ * <code>Message</code> is a view of one row. Contacts are stored by their
+ * id, and subjects and references by their id in a table of strings, so
+ * that repeated values are stored once. The lists of a row are null when
+ * the message had no such header. The dates, sender ids and subject ids
+ * can be read as columns, to sort or search messages by comparing ids
+ * instead of their contacts and strings.
+ */
+public abstract class HeaderTable {
+    /**
+     * The lists of contact or string ids a row has.
+     */
+    static final int TO = 0;
+    static final int CC = 1;
+    static final int REFERENCES = 2;
+
+    HeaderTable() {
+    }
+
+    /**
+     * Returns the offset of the message in the mbox file.
+     */
+    abstract long getPosition(int row);
+
+    /**
+     * Returns the offset of the body in the mbox file.
+     */
+    abstract long getBodyStart(int row);
+
+    /**
+     * Returns the offset following the body in the mbox file.
+     */
+    abstract long getBodyEnd(int row);
+
+    public abstract long getDate(int row);
+
+    /**
+     * Returns the id of the sender of the row, or -1 if there is none.
+     *
+     * @see Contact#getId
+     */
+    public abstract int getSenderId(int row);
+
+    /**
+     * Returns the id of the subject of the row in the table of strings, or
+     * -1 if there is none.
+     */
+    public abstract int getSubjectId(int row);
+
+    /**
+     * Returns the ids of the contacts or strings in a list of the row, or
+     * null.
+     */
+    abstract int[] getList(int row, int list);
+
+    /**
+     * Returns a string of the table by its id.
+     */
+    public abstract String getString(int id);
+
+    abstract String getID(int row);
+
+    abstract String getPreview(int row);
+
+    Contact getFrom(int row) {
+        return Contact.getContact(getSenderId(row));
+    }
+
+    Contact[] getContacts(int row, int list) {
+        int[] ids = getList(row, list);
+        if (ids == null) {
+            return null;
+        }
+        Contact[] contacts = new Contact[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            contacts[i] = Contact.getContact(ids[i]);
+        }
+        return contacts;
+    }
+
+    String getSubject(int row) {
+        int id = getSubjectId(row);
+        return (id < 0) ? null : getString(id);
+    }
+
+    String[] getReferences(int row) {
+        int[] ids = getList(row, REFERENCES);
+        if (ids == null) {
+            return null;
+        }
+        String[] references = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            references[i] = getString(ids[i]);
+        }
+        return references;
+    }
+}
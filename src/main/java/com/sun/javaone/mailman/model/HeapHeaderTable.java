@@ -0,0 +1,248 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.sun.javaone.mailman.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A header table kept on the heap in primitive columns. The lists of a
+ * row follow each other in a shared int array, each as its length, or -1
+ * for null, and then its ids. Rows are appended by one parser at a time;
+ * reads take no lock. The columns only grow by being copied into larger
+ * arrays, and a row or string is published by writing the volatile size
+ * after it, so a reader that checks the size first sees it whole.
+ */
+final class HeapHeaderTable extends HeaderTable {
+    private volatile int size;
+    private long[] positions = new long[0];
+    private long[] bodyStarts = new long[0];
+    private long[] bodyEnds = new long[0];
+    private long[] dates = new long[0];
+    private int[] senders = new int[0];
+    private int[] subjects = new int[0];
+    private int[] listStart = new int[0];
+    private String[] ids = new String[0];
+    private String[] previews = new String[0];
+    private int[] lists = new int[0];
+    private int listsSize;
+
+    private volatile int stringCount;
+    private String[] strings = new String[0];
+    // Only used by writers
+    private final Map<String,Integer> stringIds =
+            new HashMap<String,Integer>();
+
+    /**
+     * Adds a row and returns its number.
+     */
+    synchronized int append(long position, long bodyStart, long bodyEnd,
+            long date, Contact from, Contact[] to, Contact[] cc,
+            String subject, String preview, String id, String[] references) {
+        int row = size;
+        if (row == dates.length) {
+            int length = Math.max(16, row * 2);
+            positions = Arrays.copyOf(positions, length);
+            bodyStarts = Arrays.copyOf(bodyStarts, length);
+            bodyEnds = Arrays.copyOf(bodyEnds, length);
+            dates = Arrays.copyOf(dates, length);
+            senders = Arrays.copyOf(senders, length);
+            subjects = Arrays.copyOf(subjects, length);
+            listStart = Arrays.copyOf(listStart, length);
+            ids = Arrays.copyOf(ids, length);
+            previews = Arrays.copyOf(previews, length);
+        }
+        positions[row] = position;
+        bodyStarts[row] = bodyStart;
+        bodyEnds[row] = bodyEnd;
+        dates[row] = date;
+        senders[row] = (from == null) ? -1 : from.getId();
+        subjects[row] = getStringId(subject);
+        ids[row] = id;
+        previews[row] = preview;
+        listStart[row] = listsSize;
+        appendContacts(to);
+        appendContacts(cc);
+        if (references == null) {
+            appendList(-1);
+        } else {
+            appendList(references.length);
+            for (String reference : references) {
+                appendList(getStringId(reference));
+            }
+        }
+        size = row + 1;
+        return row;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes the rows from <code>size</code> on. Only valid when no
+     * message refers to them any more.
+     */
+    synchronized void truncate(int size) {
+        if (size < this.size) {
+            listsSize = listStart[size];
+            Arrays.fill(ids, size, this.size, null);
+            Arrays.fill(previews, size, this.size, null);
+            this.size = size;
+        }
+    }
+
+    /**
+     * Removes all rows. Only valid when no message refers to the table
+     * any more.
+     */
+    synchronized void clear() {
+        truncate(0);
+        Arrays.fill(strings, 0, stringCount, null);
+        stringCount = 0;
+        stringIds.clear();
+    }
+
+    private void appendContacts(Contact[] contacts) {
+        if (contacts == null) {
+            appendList(-1);
+            return;
+        }
+        appendList(contacts.length);
+        for (Contact contact : contacts) {
+            appendList(contact.getId());
+        }
+    }
+
+    private void appendList(int value) {
+        if (listsSize == lists.length) {
+            lists = Arrays.copyOf(lists, Math.max(64, listsSize * 2));
+        }
+        lists[listsSize++] = value;
+    }
+
+    private int getStringId(String string) {
+        if (string == null) {
+            return -1;
+        }
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = stringCount;
+            if (id == strings.length) {
+                strings = Arrays.copyOf(strings, Math.max(16, id * 2));
+            }
+            strings[id] = string;
+            stringIds.put(string, id);
+            stringCount = id + 1;
+        }
+        return id;
+    }
+
+    private void checkRow(int row) {
+        if (row >= size) {
+            throw new IndexOutOfBoundsException("Row: " + row);
+        }
+    }
+
+    @Override
+    long getPosition(int row) {
+        checkRow(row);
+        return positions[row];
+    }
+
+    @Override
+    long getBodyStart(int row) {
+        checkRow(row);
+        return bodyStarts[row];
+    }
+
+    @Override
+    long getBodyEnd(int row) {
+        checkRow(row);
+        return bodyEnds[row];
+    }
+
+    @Override
+    public long getDate(int row) {
+        checkRow(row);
+        return dates[row];
+    }
+
+    @Override
+    public int getSenderId(int row) {
+        checkRow(row);
+        return senders[row];
+    }
+
+    @Override
+    public int getSubjectId(int row) {
+        checkRow(row);
+        return subjects[row];
+    }
+
+    @Override
+    int[] getList(int row, int list) {
+        checkRow(row);
+        int[] lists = this.lists;
+        int position = listStart[row];
+        for (int i = 0; i < list; i++) {
+            position += 1 + Math.max(0, lists[position]);
+        }
+        int length = lists[position];
+        if (length < 0) {
+            return null;
+        }
+        return Arrays.copyOfRange(lists, position + 1,
+                position + 1 + length);
+    }
+
+    @Override
+    public String getString(int id) {
+        if (id >= stringCount) {
+            throw new IndexOutOfBoundsException("String: " + id);
+        }
+        return strings[id];
+    }
+
+    @Override
+    String getID(int row) {
+        checkRow(row);
+        return ids[row];
+    }
+
+    @Override
+    String getPreview(int row) {
+        checkRow(row);
+        return previews[row];
+    }
+}
@@ -32,54 +32,144 @@
 package com.sun.javaone.mailman.model;
 
 import binding.collections.BindingCollections;
+import binding.collections.ObservableList;
 import com.sun.javaone.mailman.data.InputByteBuffer;
+import com.sun.javaone.mailman.data.MappedInputByteBuffer;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Collections;
 import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.SwingUtilities;
 
 public class MailBox {
-    private static final Pattern contactPattern = Pattern.compile("(.+?) <([^>]+)>");
-    private static final Matcher contactMatcher = contactPattern.matcher("");
     private static final int CHUNK_SIZE = 2048;
-    private static final byte[] TMP_BUF = new byte[12];
-    private static final StringBuilder stringBuilder = new StringBuilder(256);
-    private static final DateFormat DATE_FORMAT = new SimpleDateFormat(
-            "EEE, d MMM yyyy HH:mm:ss Z", Locale.ENGLISH);
-    private static final byte[] H_CC = "c:".getBytes();
-    private static final byte[] H_DATE = "ate:".getBytes();
-    private static final byte[] H_FROM = "rom:".getBytes();
-    private static final byte[] H_MESSAGE_ID = "essage-id:".getBytes();
-    private static final byte[] H_REFERENCES = "eferences:".getBytes();
-    private static final byte[] H_SUBJECT = "ubject:".getBytes();
-    private static final byte[] H_TO = "o:".getBytes();
-    private InputByteBuffer buffer;
+    public static final String SCAN_MODE_KEY = "mailman.scanMode";
+    public static final String HEADER_INDEX_KEY = "mailman.headerIndex";
+    public static final String PARSE_RANGE_SIZE_KEY = "mailman.parseRangeSize";
+    public static final String INCREMENTAL_LOAD_KEY = "mailman.incrementalLoad";
+    public static final String CONTENT_INDEX_KEY = "mailman.contentIndex";
+    public static final String OFF_HEAP_HEADERS_KEY = "mailman.offHeapHeaders";
+    private static volatile ScanMode scanMode = getDefaultScanMode();
+    private static final boolean USE_HEADER_INDEX =
+            !"false".equals(System.getProperty(HEADER_INDEX_KEY));
+    // Files larger than this are split into ranges parsed in parallel
+    private static final long PARSE_RANGE_SIZE =
+            Long.getLong(PARSE_RANGE_SIZE_KEY, 8 * 1024 * 1024);
+    // When set, messages are parsed in the background and published to
+    // the messages list on the EDT in batches of this many bytes of mbox
+    private static final boolean INCREMENTAL_LOAD =
+            Boolean.getBoolean(INCREMENTAL_LOAD_KEY);
+    private static final long LOAD_BATCH_SIZE = 256 * 1024;
+    // When set, the headers of messages restored from the header index
+    // are read in place from the mapped index instead of the heap
+    private static final boolean OFF_HEAP_HEADERS =
+            Boolean.getBoolean(OFF_HEAP_HEADERS_KEY);
+    private static final boolean USE_CONTENT_INDEX =
+            !"false".equals(System.getProperty(CONTENT_INDEX_KEY));
+    // Indexes the bodies of loaded mailboxes one after the other
+    private static final Executor CONTENT_INDEXER =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "MailBox content indexer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private FileChannel channel;
+    private volatile boolean loading;
+    // Counts the dates the parsers of a load could not read, which are
+    // reported once the load is done
+    private final AtomicInteger unreadableDates = new AtomicInteger();
+    private volatile BodyCache bodyCache = new BodyCache();
+
+    // The messages as loaded from the file, which the content index
+    // refers to by their ordinal. Guarded by contentIndexLock.
+    private final Object contentIndexLock = new Object();
+    private List<Message> loadedMessages;
+    private long loadedSize;
+    private long loadedModified;
+    private boolean contentIndexing;
+    private volatile ContentIndex contentIndex;
+
+    // Bodies are decoded from slices of mappings of the file, so that they
+    // can be read by several threads at once. A file is mapped in windows
+    // that start every BODY_WINDOW_STEP bytes and overlap the next one by
+    // as much again, so a file of up to 2 GB is one window, and a body
+    // shorter than the overlap lies in the window its start falls in.
+    // Windows are mapped as needed and replaced under the lock of the
+    // mailbox.
+    private static final long BODY_WINDOW_STEP = 1L << 30;
+    private volatile MappedByteBuffer[] bodyWindows = new MappedByteBuffer[0];
+    private static final ThreadLocal<CharsetDecoder> bodyDecoder =
+            new ThreadLocal<CharsetDecoder>() {
+        @Override
+        protected CharsetDecoder initialValue() {
+            return UTF_8.newDecoder();
+        }
+    };
+
+    // Messages parsed in the background and not yet published on the EDT
+    private final List<Message> pendingMessages = new ArrayList<Message>();
+    private boolean publishScheduled;
+    private boolean loaded;
 
 
 
     public enum Type {
         FOLDER, INBOX, TRASH, SENT, DRAFTS, OTHER
     }
+
+    /**
+     * How the mbox file is read by <code>loadMessages</code>.
+     */
+    public enum ScanMode {
+        /** Reads the file through a small direct buffer */
+        BUFFERED,
+        /** Maps the file in large windows and scans it in bulk */
+        MAPPED
+    }
     private final File path;
     private String name;
     private final Type type;
     private MailBox parent;
 
-    private final List<Message> messages = BindingCollections.observableList(new ArrayList<Message>());
-    private final List<MailBox> folders = BindingCollections.observableList(new ArrayList<MailBox>());
+    private final ObservableList<Message> messages = BindingCollections.observableList(new ArrayList<Message>());
+    private final HeaderStore headerStore = new HeaderStore(messages);
+    private final HeapHeaderTable headerTable = new HeapHeaderTable();
+    // Copied on write, so searches off the EDT can take a snapshot of it
+    private final List<MailBox> folders = BindingCollections.observableList(new CopyOnWriteArrayList<MailBox>());
 
     public MailBox(Type type, String name, MailBox parent,
             File path) throws IOException {
@@ -115,6 +205,7 @@ public class MailBox {
                     "type Folder.");
         }
 
+        folder.setBodyCache(bodyCache);
         folders.add(folder);
     }
 
@@ -132,88 +223,168 @@ public class MailBox {
      * Recursive find
      */
     public Message[] findAll() {
-        List<Message> messages = new LinkedList<Message>(this.messages);
-        for (MailBox mbox : folders) {
-            Collections.addAll(messages, mbox.findAll());
-        }
-        return messages.toArray(new Message[0]);
+        return find(new MessageQuery(), null);
     }
 
     /**
      * Recursive find
      */
     public Message[] findBySender(String sender) {
-        List<Message> messages = new LinkedList<Message>();
-        for (Message message : this.messages) {
-            Contact author = message.getFrom();
-            if (author.getDisplayName().contains(sender) ||
-                    author.getFirstName().contains(sender) ||
-                    author.getLastName().contains(sender) ||
-                    author.getAddress().contains(sender)) {
-                messages.add(message);
-            }
-        }
-
-        for (MailBox mbox : folders) {
-            Collections.addAll(messages, mbox.findBySender(sender));
-        }
-        return messages.toArray(new Message[0]);
+        return find(new MessageQuery().setSender(sender));
     }
 
     /**
      * Recursive find
      */
     public Message[] findByRecipient(String recipient) {
-        List<Message> messages = new LinkedList<Message>();
-        for (Message message : this.messages) {
-            for (Contact contact : message.getTo()) {
-                if (contact.getDisplayName().contains(recipient) ||
-                        contact.getFirstName().contains(recipient) ||
-                        contact.getLastName().contains(recipient) ||
-                        contact.getAddress().contains(recipient)) {
-                    messages.add(message);
-                }
-            }
-        }
-
-        for (MailBox mbox : folders) {
-            Collections.addAll(messages, mbox.findByRecipient(recipient));
-        }
-        return messages.toArray(new Message[0]);
+        return find(new MessageQuery().setRecipient(recipient));
     }
 
     /**
      * Recursive find
      */
     public Message[] findBySubject(String subject) {
-        List<Message> messages = new LinkedList<Message>();
-        for (Message message : this.messages) {
-            if (message.getSubject().contains(subject)) {
-                messages.add(message);
-            }
-        }
+        return find(new MessageQuery().setSubject(subject));
+    }
 
-        for (MailBox mbox : folders) {
-            Collections.addAll(messages, mbox.findBySubject(subject));
-        }
-        return messages.toArray(new Message[0]);
+    /**
+     * Recursive find of the messages matching every condition of
+     * <code>query</code>, in one pass over each mailbox.
+     */
+    public Message[] find(MessageQuery query) {
+        String content = query.getContent();
+        return find(query, (content == null) ? null :
+            new SubstringQuery(content));
     }
 
     /**
      * Recursive find
      */
     public Message[] findByContent(String content) {
-        List<Message> messages = new LinkedList<Message>();
-        for (Message message : this.messages) {
-            if (message.getBody().contains(content)) {
-                messages.add(message);
+        return find(new MessageQuery(), new SubstringQuery(content));
+    }
+
+    /**
+     * Recursive find of the messages holding the words of
+     * <code>phrase</code> one after the other, ignoring case and the
+     * characters between words.
+     */
+    public Message[] findByPhrase(final String phrase) {
+        return find(new MessageQuery(), new ContentQuery() {
+            @Override
+            BitSet getCandidates(ContentIndex index) {
+                BitSet candidates = index.findPhrase(phrase);
+                return (candidates == null) ? new BitSet() : candidates;
+            }
+            @Override
+            boolean matches(Message message) {
+                return ContentIndex.containsPhrase(message.getBody(), phrase);
+            }
+        });
+    }
+
+    /**
+     * Recursive find of the messages holding a word starting with
+     * <code>prefix</code>, ignoring case.
+     */
+    public Message[] findByPrefix(final String prefix) {
+        return find(new MessageQuery(), new ContentQuery() {
+            @Override
+            BitSet getCandidates(ContentIndex index) {
+                return index.findPrefix(prefix);
+            }
+            @Override
+            boolean isExact() {
+                return prefix.length() <= ContentIndex.MAX_WORD_LENGTH;
+            }
+            @Override
+            boolean matches(Message message) {
+                return ContentIndex.containsPrefix(message.getBody(), prefix);
+            }
+        });
+    }
+
+    /**
+     * Recursive find of the messages matching every condition of
+     * <code>query</code>, searching this mailbox and each of its folders in
+     * parallel. The returned iterator blocks until the next match is found;
+     * matches come in no particular order.
+     */
+    public Iterator<Message> findInParallel(MessageQuery query) {
+        String content = query.getContent();
+        final FindTask task = new FindTask(this, query, (content == null) ?
+            null : new SubstringQuery(content), new ResultQueue());
+        ForkJoinPool.commonPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.invoke();
+                } catch (RuntimeException e) {
+                    task.results.failure = e;
+                } finally {
+                    task.results.queue.add(ResultQueue.END);
+                }
             }
+        });
+        return task.results;
+    }
+
+    private Message[] find(MessageQuery query, ContentQuery contentQuery) {
+        List<Message> messages = new ArrayList<Message>();
+        find(query, contentQuery, messages);
+        return messages.toArray(new Message[0]);
+    }
+
+    private void find(MessageQuery query, ContentQuery contentQuery,
+            List<Message> results) {
+        findMessages(query, contentQuery, results);
+        for (MailBox mbox : getFolderSnapshot()) {
+            mbox.find(query, contentQuery, results);
         }
+    }
+
+    /**
+     * Returns the messages of this mailbox matching <code>query</code>,
+     * leaving out its folders.
+     */
+    public List<Message> findMessages(MessageQuery query) {
+        String content = query.getContent();
+        List<Message> results = new ArrayList<Message>();
+        findMessages(query, (content == null) ? null :
+            new SubstringQuery(content), results);
+        return results;
+    }
+
+    /**
+     * Returns a matcher of <code>query</code> for the messages of this
+     * mailbox, leaving out its folders, so that callers can check messages
+     * one at a time and show the matches as they are found. Messages added
+     * to the mailbox after the call may not match header conditions.
+     */
+    public Matcher getMatcher(MessageQuery query) {
+        String content = query.getContent();
+        return new Matcher(headerStore.getMatcher(query), (content == null) ?
+            null : new SubstringQuery(content));
+    }
+
+    /**
+     * Returns the date of the newest message of this mailbox, leaving out
+     * its folders, or <code>Long.MIN_VALUE</code> if it is empty.
+     */
+    long getNewestDate() {
+        return headerStore.getNewestDate();
+    }
 
-        for (MailBox mbox : folders) {
-            Collections.addAll(messages, mbox.findByContent(content));
+    // Adds the matching messages of this mailbox, without its folders.
+    // The header store is searched rather than the messages list, which
+    // may be changed on the EDT meanwhile.
+    private void findMessages(MessageQuery query, ContentQuery contentQuery,
+            Collection<? super Message> results) {
+        for (Message message : headerStore.find(query)) {
+            if (contentQuery == null || contentQuery.accept(message)) {
+                results.add(message);
+            }
         }
-        return messages.toArray(new Message[0]);
     }
 
     /**
@@ -247,302 +418,614 @@ public class MailBox {
         return folders;
     }
 
-    @Override
-            public String toString() {
-        return getName() + " [" + " messages=" + messages +
-                " folder=" + folders +
-                "]";
+    /**
+     * Returns a copy of the folders of this mailbox, which may be walked
+     * on any thread.
+     */
+    List<MailBox> getFolderSnapshot() {
+        return Arrays.asList(folders.toArray(new MailBox[0]));
     }
 
-    private void loadMessages() throws IOException {
-        // Search for starting with ^From
-        // Header separated with a newline
-        long startTime = System.currentTimeMillis();
-        FileChannel channel = new FileInputStream(path).getChannel();
-        ByteBuffer bBuffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
-        buffer = new InputByteBuffer(channel, bBuffer);
-        int start = 0;
-        if (!buffer.atEnd()) {
-            int count = 0;
-            do {
-                Message message = new Message(this, start);
-                parseHeader(buffer, message);
-                int headerEnd = (int)(bBuffer.position() + channel.position() - CHUNK_SIZE);
-                parseToNextMessage(buffer);
-                int end = (int)(bBuffer.position() + channel.position() -
-                        CHUNK_SIZE);
-                start = end;
-                addMessage(message);
-                count++;
-            } while (!buffer.atEnd());
-        }
-        long endTime = System.currentTimeMillis();
-    }
-
-    private boolean parseHeader(InputByteBuffer buffer, Message message) throws IOException {
-        while (true) {
-            switch(buffer.get()) {
-                case 'C':
-                    if (headerEquals(H_CC, buffer)) {
-                        message.setCc(getCC(buffer));
-                    }
-                    break;
-                case 'D':
-                    if (headerEquals(H_DATE, buffer)) {
-                        message.setDate(getDate(buffer));
-                    }
-                    break;
-                case 'F':
-                    if (headerEquals(H_FROM, buffer)) {
-                        message.setFrom(getFrom(buffer));
-                    }
-                    break;
-                case 'M':
-                    if (headerEquals(H_MESSAGE_ID, buffer)) {
-                        message.setID(getID(buffer));
-                    }
-                    break;
-                case 'R':
-                    if (headerEquals(H_REFERENCES, buffer)) {
-                        message.setReferences(getReferences(buffer));
-                    }
-                    break;
-                case 'S':
-                    if (headerEquals(H_SUBJECT, buffer)) {
-                        message.setSubject(getSubject(buffer));
-                    }
-                    break;
-                case 'T':
-                    if (headerEquals(H_TO, buffer)) {
-                        message.setTo(getTo(buffer));
-                    }
-                    break;
-                case '\r':
-                    if (buffer.atEnd()) {
-                        return true;
-                    }
-                    if (buffer.get() == '\n') {
-                        return true;
-                    }
-                    buffer.rewind(1);
-                    break;
-                default:
-                    while (!buffer.atEnd() && buffer.get() != '\n');
-                    if (buffer.atEnd()) {
-                        return false;
-                    }
-                    break;
+    /**
+     * Returns the table holding the headers of the messages of this
+     * mailbox that are parsed serially or restored from the header index.
+     * Ranges of the file parsed in parallel have tables of their own.
+     */
+    HeapHeaderTable getHeaderTable() {
+        return headerTable;
+    }
+
+    /**
+     * Returns the cache holding the bodies of the messages of this mailbox.
+     */
+    public BodyCache getBodyCache() {
+        return bodyCache;
+    }
+
+    /**
+     * Sets the cache holding the bodies of the messages of this mailbox
+     * and of its folders.
+     */
+    public void setBodyCache(BodyCache bodyCache) {
+        if (bodyCache == null) {
+            throw new IllegalArgumentException("Body cache cannot be null.");
+        }
+        this.bodyCache = bodyCache;
+        for (MailBox folder : folders) {
+            folder.setBodyCache(bodyCache);
+        }
+    }
+
+    /**
+     * Returns true while messages are still being parsed in the background
+     * and added to the messages list. This only happens when the
+     * <code>mailman.incrementalLoad</code> system property is set.
+     */
+    public boolean isLoading() {
+        return loading;
+    }
+
+    /**
+     * Sets how mailboxes created from now on read their file. The default
+     * comes from the <code>mailman.scanMode</code> system property.
+     */
+    public static void setScanMode(ScanMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Scan mode cannot be null.");
+        }
+        scanMode = mode;
+    }
+
+    public static ScanMode getScanMode() {
+        return scanMode;
+    }
+
+    /**
+     * Creates the buffer to read <code>channel</code> with, according to
+     * the scan mode.
+     */
+    static InputByteBuffer createBuffer(FileChannel channel)
+            throws IOException {
+        if (scanMode == ScanMode.MAPPED) {
+            return new MappedInputByteBuffer(channel);
+        }
+        return new InputByteBuffer(channel,
+                ByteBuffer.allocateDirect(CHUNK_SIZE));
+    }
+
+    private static ScanMode getDefaultScanMode() {
+        String mode = System.getProperty(SCAN_MODE_KEY);
+        if (mode != null) {
+            try {
+                return ScanMode.valueOf(mode.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                System.err.println("unknown scan mode " + mode);
             }
         }
+        return ScanMode.BUFFERED;
     }
 
-    private boolean isEndOfHeader(InputByteBuffer buffer) throws IOException {
-        if (buffer.atEnd()) {
-            return true;
+    /**
+     * Checks messages of a mailbox against a query, one at a time. Not
+     * thread safe.
+     */
+    public static final class Matcher {
+        private final HeaderStore.Matcher headers;
+        private final ContentQuery contentQuery;
+
+        private Matcher(HeaderStore.Matcher headers,
+                ContentQuery contentQuery) {
+            this.headers = headers;
+            this.contentQuery = contentQuery;
+        }
+
+        public boolean matches(Message message) {
+            return headers.matches(message) &&
+                    (contentQuery == null || contentQuery.accept(message));
         }
-        int delta = 0;
-        if (buffer.get() == '\n') {
-            if (buffer.atEnd()) {
-                return true;
+    }
+
+    /**
+     * A search of the bodies of messages. The content index of the
+     * mailbox each message was loaded from narrows down the messages whose
+     * body is checked.
+     */
+    private static abstract class ContentQuery {
+        private final Map<MailBox,ContentIndex> indexes =
+                new HashMap<MailBox,ContentIndex>();
+        private final Map<MailBox,BitSet> candidates =
+                new HashMap<MailBox,BitSet>();
+        // The candidates known to match without checking their body
+        private final Map<MailBox,BitSet> matching =
+                new HashMap<MailBox,BitSet>();
+
+        /**
+         * Returns the ordinals of the messages that may match, or null if
+         * the index cannot tell.
+         */
+        abstract BitSet getCandidates(ContentIndex index);
+
+        abstract boolean matches(Message message);
+
+        /**
+         * Returns true if the candidates that are fully indexed are known
+         * to match.
+         */
+        boolean isExact() {
+            return false;
+        }
+
+        boolean accept(Message message) {
+            MailBox mailBox = message.getMailBox();
+            ContentIndex index;
+            BitSet set;
+            BitSet known;
+            // Mailboxes may be searched in parallel
+            synchronized (this) {
+                if (!indexes.containsKey(mailBox)) {
+                    index = mailBox.getContentIndex();
+                    set = (index == null) ? null : getCandidates(index);
+                    known = null;
+                    if (set != null && isExact()) {
+                        known = (BitSet)set.clone();
+                        known.andNot(index.getPartialMessages());
+                    }
+                    indexes.put(mailBox, index);
+                    candidates.put(mailBox, set);
+                    matching.put(mailBox, known);
+                }
+                index = indexes.get(mailBox);
+                set = candidates.get(mailBox);
+                known = matching.get(mailBox);
             }
-            if (buffer.get() == '\r') {
-                if (buffer.atEnd()) {
-                    return true;
+            int ordinal = message.getOrdinal();
+            if (set != null && ordinal >= 0 &&
+                    ordinal < index.getMessageCount()) {
+                if (!set.get(ordinal)) {
+                    return false;
                 }
-                if (buffer.get() == '\n') {
+                if (known != null && known.get(ordinal)) {
                     return true;
                 }
-                delta++;
-            } else {
-                delta++;
             }
-        } else {
-            delta++;
-        }
-        buffer.rewind(delta);
-        return false;
-    }
-
-    private boolean parseToNextMessage(InputByteBuffer buffer) throws IOException {
-        while (!buffer.atEnd()) {
-            if (buffer.get() == '\r') {
-                if (!buffer.atEnd() && buffer.get() == '\n') {
-                    if (!buffer.atEnd() && buffer.get() == 'F') {
-                        if (!buffer.atEnd() && buffer.get() == 'r') {
-                            if (!buffer.atEnd() && buffer.get() == 'o') {
-                                if (!buffer.atEnd() && buffer.get() == 'm') {
-                                    if (!buffer.atEnd() && buffer.get() == ' ') {
-                                        return true;
-                                    }
-                                }
-                            }
-                        }
-                    }
+            return matches(message);
+        }
+    }
+
+    private static final class SubstringQuery extends ContentQuery {
+        private final String content;
+
+        SubstringQuery(String content) {
+            this.content = content;
+        }
+
+        @Override
+        BitSet getCandidates(ContentIndex index) {
+            return index.find(content);
+        }
+
+        @Override
+        boolean matches(Message message) {
+            return message.getBody().contains(content);
+        }
+    }
+
+    /**
+     * Searches a mailbox while its folders are searched by subtasks, all of
+     * them adding their matches to the same queue.
+     */
+    private static final class FindTask extends RecursiveAction {
+        private final MailBox mailBox;
+        private final MessageQuery query;
+        private final ContentQuery contentQuery;
+        private final ResultQueue results;
+
+        FindTask(MailBox mailBox, MessageQuery query,
+                ContentQuery contentQuery, ResultQueue results) {
+            this.mailBox = mailBox;
+            this.query = query;
+            this.contentQuery = contentQuery;
+            this.results = results;
+        }
+
+        @Override
+        protected void compute() {
+            List<FindTask> tasks = new ArrayList<FindTask>();
+            for (MailBox folder : mailBox.getFolderSnapshot()) {
+                FindTask task = new FindTask(folder, query, contentQuery,
+                        results);
+                task.fork();
+                tasks.add(task);
+            }
+            mailBox.findMessages(query, contentQuery, results.queue);
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+    }
+
+    /**
+     * The matches of a parallel search, handed to the caller as they are
+     * found. The search ends the queue with <code>END</code>.
+     */
+    private static final class ResultQueue implements Iterator<Message> {
+        static final Object END = new Object();
+
+        final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+        volatile RuntimeException failure;
+        private Object next;
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
                 }
-                buffer.rewind(1);
             }
-//            int size = buffer.get(TMP_BUF, 0, 7);
-//            if (size != 7) {
-//                return false;
-//            }
-//            if (TMP_BUF[0] == '\r' &&
-//                    TMP_BUF[1] == '\n' &&
-//                    TMP_BUF[2] == 'F' &&
-//                    TMP_BUF[3] == 'r' &&
-//                    TMP_BUF[4] == 'o' &&
-//                    TMP_BUF[5] == 'm' &&
-//                    TMP_BUF[6] == ' ') {
-//                return true;
-//            }
-//            buffer.rewind(6);
-        }
-        return false;
-    }
-
-    private String getHeaderString(InputByteBuffer buffer) throws IOException {
-        StringBuilder builder = stringBuilder;
-        builder.setLength(0);
-        byte b;
-        buffer.get();
-        for (;;) {
-            b = buffer.get();
-            if (b == '\r') {
-                b = buffer.get();
-                if (b == '\n') {
-                    b = buffer.get();
-                    if (b == ' ' || b == '\t') {
-                        while (b == ' ' || b == '\t') {
-                            b = buffer.get();
-                        }
-                        builder.append(' ');
-                        builder.append((char)b);
-                    } else {
-                        buffer.rewind(1);
-                        break;
-                    }
-                } else {
-                    builder.append((char)b);
+            if (next == END) {
+                // Leave the end in place for further calls
+                queue.add(END);
+                next = null;
+                if (failure != null) {
+                    throw failure;
                 }
-            } else {
-                builder.append((char)b);
+                return false;
             }
+            return true;
         }
-        return builder.toString();
-    }
 
-    private void skipHeader() throws IOException {
-        for (;;) {
-            if (buffer.get() == '\r' &&isEndOfHeader(buffer)) {
-                return;
+        @Override
+        public Message next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            Message message = (Message) next;
+            next = null;
+            return message;
         }
-    }
 
-    String getBody(Message message) throws IOException {
-        buffer.setChannelPosition(message.getPosition());
-        skipHeader();
-        int start = (int)buffer.getChannelPosition();
-        parseToNextMessage(buffer);
-        int end = (int)buffer.getChannelPosition();
-        if (!buffer.atEnd()) {
-            end -= 8;
-        } else {
-            end--;
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
-        buffer.setChannelPosition(start);
-        StringBuilder builder = new StringBuilder(end - start);
-        for (int i = 0; i < (end - start); i++) {
-            builder.append((char)buffer.get());
+    }
+
+    @Override
+            public String toString() {
+        return getName() + " [" + " messages=" + messages +
+                " folder=" + folders +
+                "]";
+    }
+
+    private void loadMessages() throws IOException {
+        channel = new FileInputStream(path).getChannel();
+        if (!INCREMENTAL_LOAD) {
+            loadMessages(channel, createBuffer(channel), false);
+            return;
         }
-        return builder.toString();
+
+        loading = true;
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loadMessages(channel, createBuffer(channel), true);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    publishMessages(Collections.<Message>emptyList(), true);
+                }
+            }
+        }, "MailBox loader " + name);
+        loader.setDaemon(true);
+        loader.start();
     }
 
-    private boolean headerEquals(byte[] data, InputByteBuffer buffer) throws IOException {
-        if (buffer.get(TMP_BUF, 0, data.length) != data.length) {
-            return false;
+    private void loadMessages(FileChannel channel, InputByteBuffer buffer,
+            boolean incremental) throws IOException {
+        // Search for starting with ^From
+        // Header separated with a newline
+        long modified = path.lastModified();
+        MailBoxParser parser = new MailBoxParser(this);
+        List<Message> loaded = new ArrayList<Message>();
+        long size = channel.size();
+        long start = 0;
+        File indexFile = MailBoxIndex.getIndexFile(path);
+        MailBoxIndex index = USE_HEADER_INDEX ?
+            MailBoxIndex.read(indexFile, this, size, modified,
+                OFF_HEAP_HEADERS) : null;
+        if (index != null) {
+            List<Message> indexed = index.getMessages();
+            if (index.matches(size, modified)) {
+                addMessages(indexed, incremental);
+                messagesLoaded(indexed, size, modified);
+                return;
+            }
+            if (index.getMBoxSize() < size && !indexed.isEmpty()) {
+                // Assume the file was appended to, and only parse from the
+                // last indexed message on, as its body may have grown.
+                Message last = indexed.get(indexed.size() - 1);
+                long lastPosition = last.getPosition();
+                if (parser.isMessageStart(buffer, lastPosition)) {
+                    if (last.getHeaderTable() == headerTable) {
+                        // Its row is the last of the table, and is parsed
+                        // again in its place
+                        headerTable.truncate(headerTable.size() - 1);
+                    }
+                    loaded.addAll(indexed.subList(0, indexed.size() - 1));
+                    addMessages(loaded, incremental);
+                    start = lastPosition;
+                }
+            }
         }
-        for (int i = data.length - 1; i >= 0; i--) {
-            if (TMP_BUF[i] != data[i]) {
-                buffer.rewind(data.length - 1);
-                while (buffer.get() != '\n');
-                return false;
+        if (index != null && loaded.isEmpty()) {
+            // None of the indexed messages are used, drop their headers
+            headerTable.clear();
+        }
+        if (incremental) {
+            // Publish the first screen of messages as soon as it is parsed
+            List<Message> parsed = new ArrayList<Message>();
+            start = parser.parse(buffer, start,
+                    Math.min(size, start + LOAD_BATCH_SIZE), parsed);
+            loaded.addAll(parsed);
+            addMessages(parsed, true);
+        }
+        int rangeCount = MailBoxParser.getRangeCount(size - start,
+                PARSE_RANGE_SIZE);
+        if (rangeCount > 1) {
+            List<Message> parsed = MailBoxParser.parseInParallel(this,
+                    channel, buffer, start, size, rangeCount);
+            loaded.addAll(parsed);
+            addMessages(parsed, incremental);
+        } else {
+            while (start < size) {
+                List<Message> parsed = new ArrayList<Message>();
+                long to = incremental ?
+                    Math.min(size, start + LOAD_BATCH_SIZE) : size;
+                start = parser.parse(buffer, start, to, parsed);
+                if (parsed.isEmpty()) {
+                    break;
+                }
+                loaded.addAll(parsed);
+                addMessages(parsed, incremental);
+            }
+        }
+        if (USE_HEADER_INDEX && size > 0) {
+            try {
+                MailBoxIndex.write(indexFile, size, modified, loaded);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
-        return true;
+        messagesLoaded(loaded, size, modified);
+        int unreadable = unreadableDates.getAndSet(0);
+        if (unreadable > 0) {
+            System.err.println(name + ": " + unreadable +
+                    " messages with unreadable dates");
+        }
     }
 
-    private Contact[] getCC(InputByteBuffer buffer) throws IOException {
-        String ccString = getHeaderString(buffer);
-        Contact[] cc = getContacts(ccString);
-        return cc;
+    /**
+     * Counts a message whose date could not be read. Called by the parsers
+     * of a load, from any thread.
+     */
+    void dateUnreadable() {
+        unreadableDates.incrementAndGet();
     }
 
-    private long getDate(InputByteBuffer buffer) throws IOException {
-        String dateString = getHeaderString(buffer);
-        try {
-            return DATE_FORMAT.parse(dateString).getTime();
-        } catch (ParseException e) {
-            System.err.println("datestring=" + dateString + "!");
-            e.printStackTrace();
-            System.exit(0);
+    /**
+     * Numbers the messages loaded from the file for the content index.
+     */
+    private void messagesLoaded(List<Message> loaded, long size,
+            long modified) {
+        for (int i = 0; i < loaded.size(); i++) {
+            loaded.get(i).setOrdinal(i);
+        }
+        synchronized (contentIndexLock) {
+            loadedMessages = loaded;
+            loadedSize = size;
+            loadedModified = modified;
         }
-        return 0;
     }
 
-    private Contact getFrom(InputByteBuffer buffer) throws IOException {
-        String from = getHeaderString(buffer);
-        return getContact(from);
+    /**
+     * Returns the index of the bodies of the messages loaded from the
+     * file, or null if it is not ready. The first call starts reading or
+     * building the index in the background; until it is done, callers
+     * check the bodies themselves. Also returns null while the messages
+     * are loading, or if the index is disabled or cannot be built.
+     */
+    ContentIndex getContentIndex() {
+        ContentIndex index = contentIndex;
+        if (index != null || !USE_CONTENT_INDEX) {
+            return index;
+        }
+        final List<Message> loaded;
+        final long size;
+        final long modified;
+        synchronized (contentIndexLock) {
+            if (contentIndexing || loadedMessages == null) {
+                return null;
+            }
+            contentIndexing = true;
+            loaded = loadedMessages;
+            size = loadedSize;
+            modified = loadedModified;
+        }
+        CONTENT_INDEXER.execute(new Runnable() {
+            @Override
+            public void run() {
+                ContentIndex index = null;
+                try {
+                    index = buildContentIndex(loaded, size, modified);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                synchronized (contentIndexLock) {
+                    if (index == null) {
+                        // Not tried again
+                        loadedMessages = null;
+                    }
+                    contentIndex = index;
+                    contentIndexing = false;
+                }
+            }
+        });
+        return null;
     }
 
-    private String getID(InputByteBuffer buffer) throws IOException {
-        String id = getHeaderString(buffer);
-        return id;
+    private ContentIndex buildContentIndex(List<Message> loaded,
+            long loadedSize, long loadedModified) throws IOException {
+        File indexFile = ContentIndex.getIndexFile(path);
+        ContentIndex index = ContentIndex.read(indexFile);
+        int start = 0;
+        if (index != null) {
+            int count = index.getMessageCount();
+            if (index.matches(loadedSize, loadedModified) &&
+                    count == loaded.size()) {
+                return index;
+            }
+            if (index.getMBoxSize() < loadedSize && count > 0 &&
+                    count <= loaded.size() &&
+                    loaded.get(count - 1).getPosition() ==
+                    index.getLastPosition()) {
+                // The file was appended to. The last indexed message is
+                // indexed again, as its body may have grown.
+                start = count - 1;
+            } else {
+                index = null;
+            }
+        }
+        if (index == null) {
+            index = new ContentIndex();
+        }
+        for (int i = start; i < loaded.size(); i++) {
+            index.add(i, getBody(loaded.get(i)));
+        }
+        if (loadedSize > 0) {
+            try {
+                index.write(indexFile, loadedSize, loadedModified, loaded);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return index;
     }
 
-    private String[] getReferences(InputByteBuffer buffer) throws IOException {
-        String refs = getHeaderString(buffer);
-        return split(refs);
+    private void addMessages(List<Message> batch, boolean incremental) {
+        if (incremental) {
+            publishMessages(batch, false);
+        } else {
+            messages.addAll(batch);
+        }
     }
 
-    private String getSubject(InputByteBuffer buffer) throws IOException {
-        String subject = getHeaderString(buffer);
-        return subject;
+    /**
+     * Queues messages parsed in the background to be added on the EDT.
+     * Batches queued before the EDT gets to them are added at once, so the
+     * views bound to the messages list are updated once per event.
+     */
+    private void publishMessages(List<Message> batch, boolean last) {
+        synchronized (pendingMessages) {
+            pendingMessages.addAll(batch);
+            loaded |= last;
+            if (publishScheduled) {
+                return;
+            }
+            publishScheduled = true;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                List<Message> batch;
+                boolean last;
+                synchronized (pendingMessages) {
+                    batch = new ArrayList<Message>(pendingMessages);
+                    pendingMessages.clear();
+                    last = loaded;
+                    publishScheduled = false;
+                }
+                if (!batch.isEmpty()) {
+                    messages.addAll(batch);
+                }
+                if (last) {
+                    loading = false;
+                }
+            }
+        });
     }
 
-    private Contact[] getTo(InputByteBuffer buffer) throws IOException {
-        String to = getHeaderString(buffer);
-        return getContacts(to);
+    /**
+     * Returns the body of <code>message</code>. This may be called by
+     * several threads at once.
+     */
+    String getBody(Message message) throws IOException {
+        long start = message.getBodyStart();
+        long end = message.getBodyEnd();
+        return decodeBody(getBodyRegion(start, (int)(end - start)));
     }
 
-    private Contact[] getContacts(String string) {
-        String[] names = split(string);
-        Contact[] contacts = new Contact[names.length];
-        for (int i = 0; i < contacts.length; i++) {
-            contacts[i] = getContact(names[i]);
+    private ByteBuffer getBodyRegion(long start, int length)
+            throws IOException {
+        long end = start + length;
+        int window = (int)(start / BODY_WINDOW_STEP);
+        long windowStart = window * BODY_WINDOW_STEP;
+        if (end - windowStart > Integer.MAX_VALUE) {
+            // Longer than the overlap of the windows, map the body on its
+            // own
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
         }
-        return contacts;
+        MappedByteBuffer[] windows = bodyWindows;
+        MappedByteBuffer mapped = (window < windows.length) ?
+            windows[window] : null;
+        if (mapped == null || end - windowStart > mapped.capacity()) {
+            mapped = mapBodyWindow(window, end);
+        }
+        ByteBuffer region = mapped.duplicate();
+        region.limit((int)(end - windowStart))
+                .position((int)(start - windowStart));
+        return region;
     }
 
-    private Contact getContact(String name) {
-        contactMatcher.reset(name);
-        if (contactMatcher.matches() && contactMatcher.groupCount() == 2) {
-            String displayName = contactMatcher.group(1);
-            String firstName = "";
-            String lastName = "";
-            String[] parts = displayName.split(" ", 2);
-            if (parts.length == 2) {
-                firstName = parts[0];
-                lastName = parts[1];
+    // Maps the window at index window again if it does not reach end, as
+    // the file may have grown since it was mapped
+    private synchronized MappedByteBuffer mapBodyWindow(int window, long end)
+            throws IOException {
+        MappedByteBuffer[] windows = bodyWindows;
+        MappedByteBuffer mapped = (window < windows.length) ?
+            windows[window] : null;
+        long windowStart = window * BODY_WINDOW_STEP;
+        if (mapped == null || end - windowStart > mapped.capacity()) {
+            long size = channel.size();
+            if (end > size) {
+                throw new IOException("Message body past the end of " + path);
             }
-
-            return Contact.getContact(firstName, lastName, displayName,
-                    contactMatcher.group(2));
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                    Math.min(size - windowStart, Integer.MAX_VALUE));
+            windows = Arrays.copyOf(windows,
+                    Math.max(windows.length, window + 1));
+            windows[window] = mapped;
+            bodyWindows = windows;
         }
-        return Contact.getContact(null, null, name, name);
+        return mapped;
     }
 
-    private String[] split(String text) {
-        return text.split(",\\w+");
+    /**
+     * Decodes a body as UTF-8. Bodies that are not valid UTF-8 are decoded
+     * as ISO-8859-1, which maps every byte to the same char.
+     */
+    private String decodeBody(ByteBuffer bytes) {
+        CharsetDecoder decoder = bodyDecoder.get();
+        decoder.reset();
+        try {
+            CharBuffer chars = decoder.decode(bytes.duplicate());
+            return chars.toString();
+        } catch (CharacterCodingException e) {
+            return ISO_8859_1.decode(bytes).toString();
+        }
     }
 
 }
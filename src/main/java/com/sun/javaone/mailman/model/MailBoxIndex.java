@@ -0,0 +1,373 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.javaone.mailman.model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary sidecar file holding the parsed headers of a mbox file, so that
+ * a mailbox whose file has not changed can be restored without parsing it.
+ * The index is keyed by the size and modification time of the mbox file.
+ * Contacts are stored once in a table and messages refer to them by their
+ * position in it. Each message is a fixed size record, laid out as read by
+ * <code>MappedHeaderTable</code>, holding the offsets of its body and its
+ * headers; its lists follow the records as ints, and its strings follow
+ * the lists, with a table of their offsets at the end of the file. The
+ * index is mapped into memory to be read, and its headers are either
+ * copied to the heap or used in place. Only an index that is up to date
+ * is kept mapped, since the others are replaced once the mbox file is
+ * parsed, and some systems cannot replace a mapped file.
+ */
+final class MailBoxIndex {
+    private static final int MAGIC = 0x4D424958;
+    private static final int VERSION = 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final long mboxSize;
+    private final long mboxModified;
+    private final List<Message> messages;
+
+    private MailBoxIndex(long mboxSize, long mboxModified,
+            List<Message> messages) {
+        this.mboxSize = mboxSize;
+        this.mboxModified = mboxModified;
+        this.messages = messages;
+    }
+
+    /**
+     * Returns the size the mbox file had when the index was written.
+     */
+    long getMBoxSize() {
+        return mboxSize;
+    }
+
+    /**
+     * Returns true if the index was written for a file of the given size
+     * and modification time.
+     */
+    boolean matches(long size, long modified) {
+        return mboxSize == size && mboxModified == modified;
+    }
+
+    /**
+     * Returns the indexed messages, in file order.
+     */
+    List<Message> getMessages() {
+        return messages;
+    }
+
+    static File getIndexFile(File mboxFile) {
+        return new File(mboxFile.getPath() + ".idx");
+    }
+
+    /**
+     * Reads the index of <code>mailBox</code>. Returns null if there is no
+     * index, or if it was written by another version. If
+     * <code>offHeap</code> is true and the index matches the mbox file of
+     * <code>mboxSize</code> and <code>mboxModified</code>, the messages
+     * read their headers from the mapped index, which stays mapped as long
+     * as they are reachable; otherwise their headers are copied to the
+     * header table of the mailbox and the index is unmapped.
+     */
+    static MailBoxIndex read(File indexFile, MailBox mailBox, long mboxSize,
+            long mboxModified, boolean offHeap) {
+        if (!indexFile.exists()) {
+            return null;
+        }
+        Arena arena = null;
+        boolean mapped = false;
+        try {
+            MemorySegment segment;
+            FileChannel channel = FileChannel.open(indexFile.toPath(),
+                    StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(24);
+                channel.read(header, 0);
+                header.flip();
+                mapped = offHeap && header.remaining() == 24 &&
+                        header.getLong(8) == mboxSize &&
+                        header.getLong(16) == mboxModified;
+                arena = mapped ? Arena.ofAuto() : Arena.ofConfined();
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size(), arena);
+            } finally {
+                channel.close();
+            }
+            if (segment.byteSize() < 8 ||
+                    MappedHeaderTable.readInt(segment, 0) != MAGIC ||
+                    MappedHeaderTable.readInt(segment, 4) != VERSION) {
+                return null;
+            }
+            long size = MappedHeaderTable.readLong(segment, 8);
+            long modified = MappedHeaderTable.readLong(segment, 16);
+            long offset = 24;
+
+            int[] contactIds = new int[MappedHeaderTable.readInt(segment,
+                    offset)];
+            offset += 4;
+            String[] fields = new String[4];
+            for (int i = 0; i < contactIds.length; i++) {
+                for (int j = 0; j < fields.length; j++) {
+                    fields[j] = MappedHeaderTable.readString(segment, offset);
+                    offset += MappedHeaderTable.getStringSize(segment, offset);
+                }
+                contactIds[i] = Contact.getContact(fields[0], fields[1],
+                        fields[2], fields[3]).getId();
+            }
+
+            int count = MappedHeaderTable.readInt(segment, offset);
+            long recordsOffset = offset + 4;
+            long listsOffset = recordsOffset +
+                    (long)count * MappedHeaderTable.RECORD_SIZE + 4;
+            long stringsOffset = MappedHeaderTable.readLong(segment,
+                    segment.byteSize() - 8);
+            MappedHeaderTable table = new MappedHeaderTable(segment,
+                    recordsOffset, contactIds, listsOffset, stringsOffset);
+
+            HeapHeaderTable heap = mapped ? null : mailBox.getHeaderTable();
+            List<Message> messages = new ArrayList<Message>(count);
+            for (int i = 0; i < count; i++) {
+                if (heap == null) {
+                    messages.add(new Message(mailBox, table, i));
+                } else {
+                    int row = heap.append(table.getPosition(i),
+                            table.getBodyStart(i), table.getBodyEnd(i),
+                            table.getDate(i), table.getFrom(i),
+                            table.getContacts(i, HeaderTable.TO),
+                            table.getContacts(i, HeaderTable.CC),
+                            table.getSubject(i), table.getPreview(i),
+                            table.getID(i), table.getReferences(i));
+                    messages.add(new Message(mailBox, heap, row));
+                }
+            }
+            return new MailBoxIndex(size, modified, messages);
+        } catch (IOException e) {
+            // A truncated or damaged index is rebuilt from the mbox file
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            if (arena != null && !mapped) {
+                arena.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the index for <code>messages</code>, which were parsed from
+     * the first <code>size</code> bytes of a mbox file last modified at
+     * <code>modified</code>. The file is replaced atomically.
+     */
+    static void write(File indexFile, long size, long modified,
+            List<Message> messages) throws IOException {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile), BUFFER_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(size);
+            out.writeLong(modified);
+            long position = 24;
+
+            Map<Contact,Integer> ids = new IdentityHashMap<Contact,Integer>();
+            List<Contact> contacts = new ArrayList<Contact>();
+            for (Message message : messages) {
+                addContact(message.getFrom(), ids, contacts);
+                addContacts(message.getTo(), ids, contacts);
+                addContacts(message.getCc(), ids, contacts);
+            }
+            out.writeInt(contacts.size());
+            position += 4;
+            for (Contact contact : contacts) {
+                position += writeString(out, contact.getFirstName());
+                position += writeString(out, contact.getLastName());
+                position += writeString(out, contact.getDisplayName());
+                position += writeString(out, contact.getAddress());
+            }
+
+            // Subjects and references repeat, and are written once
+            StringTable strings = new StringTable();
+            IntList lists = new IntList();
+            out.writeInt(messages.size());
+            position += 4;
+            for (Message message : messages) {
+                out.writeLong(message.getPosition());
+                out.writeLong(message.getBodyStart());
+                out.writeLong(message.getBodyEnd());
+                out.writeLong(message.getDateTime());
+                Contact from = message.getFrom();
+                out.writeInt(from == null ? -1 : ids.get(from));
+                out.writeInt(strings.getId(message.getSubject(), true));
+                out.writeInt(strings.getId(message.getPreview(), false));
+                out.writeInt(strings.getId(message.getID(), false));
+                out.writeInt(lists.size);
+                out.writeInt(0);
+                addContacts(lists, message.getTo(), ids);
+                addContacts(lists, message.getCc(), ids);
+                String[] references = message.getReferences();
+                if (references == null) {
+                    lists.add(-1);
+                } else {
+                    lists.add(references.length);
+                    for (String reference : references) {
+                        lists.add(strings.getId(reference, true));
+                    }
+                }
+            }
+            position += (long)messages.size() * MappedHeaderTable.RECORD_SIZE;
+
+            out.writeInt(lists.size);
+            position += 4;
+            for (int i = 0; i < lists.size; i++) {
+                out.writeInt(lists.values[i]);
+            }
+            position += 4L * lists.size;
+
+            long[] offsets = new long[strings.strings.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = position;
+                position += writeString(out, strings.strings.get(i));
+            }
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            out.writeLong(position);
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void addContact(Contact contact,
+            Map<Contact,Integer> ids, List<Contact> contacts) {
+        if (contact != null && !ids.containsKey(contact)) {
+            ids.put(contact, contacts.size());
+            contacts.add(contact);
+        }
+    }
+
+    private static void addContacts(Contact[] list,
+            Map<Contact,Integer> ids, List<Contact> contacts) {
+        if (list != null) {
+            for (Contact contact : list) {
+                addContact(contact, ids, contacts);
+            }
+        }
+    }
+
+    private static void addContacts(IntList lists, Contact[] list,
+            Map<Contact,Integer> ids) {
+        if (list == null) {
+            lists.add(-1);
+            return;
+        }
+        lists.add(list.length);
+        for (Contact contact : list) {
+            lists.add(ids.get(contact));
+        }
+    }
+
+    // Strings are written as UTF-8 with an int length, as header values
+    // are not bounded by the 64k limit of writeUTF. Returns the number of
+    // bytes written.
+    private static int writeString(DataOutputStream out, String string)
+            throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return 4;
+        }
+        byte[] bytes = string.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        return 4 + bytes.length;
+    }
+
+    /**
+     * The strings of an index in the order they are written.
+     */
+    private static final class StringTable {
+        final List<String> strings = new ArrayList<String>();
+        private final Map<String,Integer> ids = new HashMap<String,Integer>();
+
+        // Returns the id of a string, reusing the id of an equal string
+        // already added if shared is true, or -1 for null
+        int getId(String string, boolean shared) {
+            if (string == null) {
+                return -1;
+            }
+            Integer id = shared ? ids.get(string) : null;
+            if (id == null) {
+                id = strings.size();
+                strings.add(string);
+                if (shared) {
+                    ids.put(string, id);
+                }
+            }
+            return id;
+        }
+    }
+
+    private static final class IntList {
+        int[] values = new int[64];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
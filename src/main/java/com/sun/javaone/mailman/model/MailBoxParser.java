@@ -0,0 +1,463 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.sun.javaone.mailman.model;
+
+import com.sun.javaone.mailman.data.InputByteBuffer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parses the headers of the messages in a mbox file. A parser keeps
+ * scratch state and must only be used by one thread at a time; large
+ * files are split into ranges that are parsed by separate parsers on
+ * the fork-join pool.
+ */
+final class MailBoxParser {
+    static final byte[] FROM_SEPARATOR = "\r\nFrom ".getBytes();
+    private static final byte[] H_CC = "c:".getBytes();
+    private static final byte[] H_DATE = "ate:".getBytes();
+    private static final byte[] H_FROM = "rom:".getBytes();
+    private static final byte[] H_MESSAGE_ID = "essage-id:".getBytes();
+    private static final byte[] H_REFERENCES = "eferences:".getBytes();
+    private static final byte[] H_SUBJECT = "ubject:".getBytes();
+    private static final byte[] H_TO = "o:".getBytes();
+    // Length of the preview taken of each body, about what the message list
+    // shows, and how many bytes of the body are read for it. Previews are
+    // stored in the header index, so they are kept short
+    static final int PREVIEW_LENGTH = 100;
+    private static final int PREVIEW_BYTES = 256;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final MailBox mailBox;
+    private final HeapHeaderTable headers;
+    private final HeaderDecoder decoder = new HeaderDecoder();
+    private final byte[] tmpBuf = new byte[12];
+    private final StringBuilder stringBuilder = new StringBuilder(256);
+    private final byte[] previewBytes = new byte[PREVIEW_BYTES];
+    private final CharBuffer previewChars = CharBuffer.allocate(PREVIEW_BYTES);
+    private final CharsetDecoder previewDecoder = UTF_8.newDecoder();
+
+    // The headers of the message being parsed
+    private long date;
+    private Contact sender;
+    private Contact[] toContacts;
+    private Contact[] ccContacts;
+    private String subject;
+    private String messageId;
+    private String[] references;
+
+    MailBoxParser(MailBox mailBox) {
+        this(mailBox, mailBox.getHeaderTable());
+    }
+
+    /**
+     * Creates a parser adding the headers of the messages it parses to
+     * <code>headers</code>.
+     */
+    MailBoxParser(MailBox mailBox, HeapHeaderTable headers) {
+        this.mailBox = mailBox;
+        this.headers = headers;
+    }
+
+    /**
+     * Parses the messages that start between <code>from</code> and
+     * <code>to</code> and adds them to <code>messages</code>. Returns the
+     * position following the last message, which is at or past
+     * <code>to</code> unless the file ends first.
+     */
+    long parse(InputByteBuffer buffer, long from, long to,
+            List<Message> messages) throws IOException {
+        long start = from;
+        buffer.setChannelPosition(start);
+        while (start < to && !buffer.atEnd()) {
+            parseHeader(buffer);
+            long bodyStart = buffer.getChannelPosition();
+            String preview = readPreview(buffer);
+            boolean hasNext = parseToNextMessage(buffer);
+            long next = buffer.getChannelPosition();
+            int row = headers.append(start, bodyStart,
+                    hasNext ? getBodyEnd(bodyStart, next) : next, date,
+                    sender, toContacts, ccContacts, subject, preview,
+                    messageId, references);
+            messages.add(new Message(mailBox, headers, row));
+            start = next;
+        }
+        return start;
+    }
+
+    /**
+     * Returns how many ranges a file region of <code>length</code> bytes
+     * should be split into, given ranges of at least
+     * <code>rangeSize</code> bytes.
+     */
+    static int getRangeCount(long length, long rangeSize) {
+        if (rangeSize <= 0) {
+            return 1;
+        }
+        return (int)Math.max(1, Math.min(length / rangeSize,
+                ForkJoinPool.getCommonPoolParallelism()));
+    }
+
+    /**
+     * Parses the messages between <code>from</code> and <code>to</code>
+     * by splitting the region into <code>rangeCount</code> ranges that
+     * start on a message separator and parsing each range on its own
+     * fork-join task. The result is the same as a serial parse, in file
+     * order.
+     */
+    static List<Message> parseInParallel(MailBox mailBox,
+            FileChannel channel, InputByteBuffer buffer, long from, long to,
+            int rangeCount)
+            throws IOException {
+        List<Long> bounds = new ArrayList<Long>(rangeCount + 1);
+        bounds.add(from);
+        for (int i = 1; i < rangeCount; i++) {
+            long target = from + (to - from) / rangeCount * i;
+            if (target <= bounds.get(bounds.size() - 1)) {
+                continue;
+            }
+            buffer.setChannelPosition(target);
+            if (!buffer.skipPast(FROM_SEPARATOR) ||
+                    buffer.getChannelPosition() >= to) {
+                break;
+            }
+            bounds.add(buffer.getChannelPosition());
+        }
+        bounds.add(to);
+
+        List<RangeTask> tasks = new ArrayList<RangeTask>(bounds.size() - 1);
+        for (int i = 0; i < bounds.size() - 1; i++) {
+            tasks.add(new RangeTask(mailBox, channel, bounds.get(i),
+                    bounds.get(i + 1)));
+        }
+        try {
+            ForkJoinTask.invokeAll(tasks);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        List<Message> messages = new ArrayList<Message>();
+        long expected = from;
+        for (RangeTask task : tasks) {
+            if (task.from == expected) {
+                messages.addAll(task.messages);
+                expected = task.end;
+            } else if (task.to > expected) {
+                // The previous range ran past the separator this one
+                // starts at, as a header without an empty line following
+                // it swallows the next message. Re-parse the rest of the
+                // range from where a serial parse would be.
+                expected = new MailBoxParser(mailBox).parse(
+                        buffer, expected, task.to, messages);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Returns true if <code>position</code> directly follows a message
+     * separator, or is the start of the file.
+     */
+    boolean isMessageStart(InputByteBuffer buffer, long position)
+            throws IOException {
+        int length = FROM_SEPARATOR.length;
+        if (position < length) {
+            return position == 0;
+        }
+        buffer.setChannelPosition(position - length);
+        if (buffer.get(tmpBuf, 0, length) != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (tmpBuf[i] != FROM_SEPARATOR[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean parseHeader(InputByteBuffer buffer) throws IOException {
+        date = 0;
+        sender = null;
+        toContacts = null;
+        ccContacts = null;
+        subject = null;
+        messageId = null;
+        references = null;
+        while (true) {
+            switch(buffer.get()) {
+                case 'C':
+                    if (headerEquals(H_CC, buffer)) {
+                        ccContacts = getCC(buffer);
+                    }
+                    break;
+                case 'D':
+                    if (headerEquals(H_DATE, buffer)) {
+                        date = getDate(buffer);
+                    }
+                    break;
+                case 'F':
+                    if (headerEquals(H_FROM, buffer)) {
+                        sender = getFrom(buffer);
+                    }
+                    break;
+                case 'M':
+                    if (headerEquals(H_MESSAGE_ID, buffer)) {
+                        messageId = getID(buffer);
+                    }
+                    break;
+                case 'R':
+                    if (headerEquals(H_REFERENCES, buffer)) {
+                        references = getReferences(buffer);
+                    }
+                    break;
+                case 'S':
+                    if (headerEquals(H_SUBJECT, buffer)) {
+                        subject = getSubject(buffer);
+                    }
+                    break;
+                case 'T':
+                    if (headerEquals(H_TO, buffer)) {
+                        toContacts = getTo(buffer);
+                    }
+                    break;
+                case '\r':
+                    if (buffer.atEnd()) {
+                        return true;
+                    }
+                    if (buffer.get() == '\n') {
+                        return true;
+                    }
+                    buffer.rewind(1);
+                    break;
+                default:
+                    if (!buffer.skipPast((byte)'\n') || buffer.atEnd()) {
+                        return false;
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns the preview of the body at the position of
+     * <code>buffer</code>, leaving the position unchanged. The preview is
+     * cut at the next message separator.
+     */
+    private String readPreview(InputByteBuffer buffer)
+            throws IOException {
+        int length = buffer.get(previewBytes, 0, PREVIEW_BYTES);
+        buffer.rewind(length);
+        int end = indexOf(previewBytes, length, FROM_SEPARATOR);
+        if (end >= 0) {
+            // Drop the line break ending the body, as getBody does
+            length = Math.max(0, end - 1);
+        }
+
+        ByteBuffer bytes = ByteBuffer.wrap(previewBytes, 0, length);
+        previewChars.clear();
+        previewDecoder.reset();
+        // Not the end of input, a char cut at the end is left undecoded
+        CoderResult result = previewDecoder.decode(bytes, previewChars, false);
+        if (result.isError()) {
+            previewChars.clear();
+            previewChars.put(ISO_8859_1.decode(
+                    ByteBuffer.wrap(previewBytes, 0, length)));
+        }
+        previewChars.flip();
+
+        StringBuilder builder = stringBuilder;
+        builder.setLength(0);
+        boolean space = false;
+        while (previewChars.hasRemaining() &&
+                builder.length() < PREVIEW_LENGTH) {
+            char c = previewChars.get();
+            if (Character.isWhitespace(c)) {
+                space = builder.length() > 0;
+            } else {
+                if (space) {
+                    builder.append(' ');
+                    space = false;
+                }
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    boolean parseToNextMessage(InputByteBuffer buffer) throws IOException {
+        return buffer.skipPast(FROM_SEPARATOR);
+    }
+
+    /**
+     * Returns the end of a body starting at <code>bodyStart</code> that is
+     * followed by the message starting at <code>next</code>. The line break
+     * ending the body and the separator are not part of it.
+     */
+    static long getBodyEnd(long bodyStart, long next) {
+        return Math.max(bodyStart, next - FROM_SEPARATOR.length - 1);
+    }
+
+    private boolean headerEquals(byte[] data, InputByteBuffer buffer) throws IOException {
+        if (buffer.get(tmpBuf, 0, data.length) != data.length) {
+            return false;
+        }
+        for (int i = data.length - 1; i >= 0; i--) {
+            if (tmpBuf[i] != data[i]) {
+                buffer.rewind(data.length - 1);
+                buffer.skipPast((byte)'\n');
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Contact[] getCC(InputByteBuffer buffer) throws IOException {
+        decoder.read(buffer);
+        return decoder.getContacts();
+    }
+
+    private long getDate(InputByteBuffer buffer) throws IOException {
+        decoder.read(buffer);
+        long date = decoder.getDate();
+        if (date == DateParser.NO_DATE) {
+            // Left unset, as for a message without a date, and reported
+            // with the others once the mailbox is loaded
+            mailBox.dateUnreadable();
+            return 0;
+        }
+        return date;
+    }
+
+    private Contact getFrom(InputByteBuffer buffer) throws IOException {
+        decoder.read(buffer);
+        return decoder.getContact();
+    }
+
+    private String getID(InputByteBuffer buffer) throws IOException {
+        decoder.read(buffer);
+        return decoder.getText();
+    }
+
+    private String[] getReferences(InputByteBuffer buffer) throws IOException {
+        decoder.read(buffer);
+        return split(decoder.getText());
+    }
+
+    private String getSubject(InputByteBuffer buffer) throws IOException {
+        decoder.read(buffer);
+        return decoder.getText();
+    }
+
+    private Contact[] getTo(InputByteBuffer buffer) throws IOException {
+        decoder.read(buffer);
+        return decoder.getContacts();
+    }
+
+    // The message ids of a References header, which are separated by
+    // whitespace, or by commas in some mailers
+    private static String[] split(String text) {
+        List<String> ids = new ArrayList<String>();
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            char c = (i < length) ? text.charAt(i) : ' ';
+            if (c == ',' || Character.isWhitespace(c)) {
+                if (start >= 0) {
+                    ids.add(text.substring(start, i));
+                    start = -1;
+                }
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+        return ids.toArray(new String[ids.size()]);
+    }
+
+    private static final class RangeTask extends RecursiveAction {
+        private final MailBox mailBox;
+        private final FileChannel channel;
+        final long from;
+        final long to;
+        List<Message> messages;
+        long end;
+
+        RangeTask(MailBox mailBox, FileChannel channel, long from, long to) {
+            this.mailBox = mailBox;
+            this.channel = channel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            // Ranges share the channel, which buffers read at positions of
+            // their own, but not a buffer, which holds the bytes it read
+            // last and where it is in them
+            try {
+                InputByteBuffer buffer = MailBox.createBuffer(channel);
+                // A range has a table of its own, so that the headers of a
+                // range that is parsed again are dropped with it
+                messages = new ArrayList<Message>();
+                end = new MailBoxParser(mailBox, new HeapHeaderTable())
+                        .parse(buffer, from, to, messages);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
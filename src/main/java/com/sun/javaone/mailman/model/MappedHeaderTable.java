@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.sun.javaone.mailman.model;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * A header table read in place from a header index mapped into memory,
+ * so that the headers of large mailboxes stay in the page cache instead
+ * of the heap. Each row is a fixed size record of the index; the lists
+ * of the rows and the strings follow the records. Contacts are stored
+ * in the index by their position in its table of contacts, which maps
+ * them to their ids. The table is immutable and may be read by any
+ * thread. Strings are decoded when they are read; the last ones read are
+ * kept in a small cache, so that painting the same rows again does not
+ * decode their subjects again.
+ */
+final class MappedHeaderTable extends HeaderTable {
+    // The fields of a record, in the order they are written
+    static final int POSITION = 0;
+    static final int BODY_START = 8;
+    static final int BODY_END = 16;
+    static final int DATE = 24;
+    static final int SENDER = 32;
+    static final int SUBJECT = 36;
+    static final int PREVIEW = 40;
+    static final int ID = 44;
+    static final int LISTS = 48;
+    static final int RECORD_SIZE = 56;
+
+    // The index is written by a DataOutputStream
+    private static final ValueLayout.OfInt INT =
+            ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG =
+            ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Number of strings cached, a power of two
+    private static final int STRING_CACHE_SIZE = 1024;
+
+    private final MemorySegment segment;
+    private final long recordsOffset;
+    private final int[] contactIds;
+    private final long listsOffset;
+    private final long stringsOffset;
+    // Decoded strings by the low bits of their id
+    private final CachedString[] stringCache =
+            new CachedString[STRING_CACHE_SIZE];
+
+    /**
+     * Creates a table over the records starting at
+     * <code>recordsOffset</code>, the list ints starting at
+     * <code>listsOffset</code> and the offsets of the strings starting at
+     * <code>stringsOffset</code>.
+     */
+    MappedHeaderTable(MemorySegment segment, long recordsOffset,
+            int[] contactIds, long listsOffset, long stringsOffset) {
+        this.segment = segment;
+        this.recordsOffset = recordsOffset;
+        this.contactIds = contactIds;
+        this.listsOffset = listsOffset;
+        this.stringsOffset = stringsOffset;
+    }
+
+    static int readInt(MemorySegment segment, long offset) {
+        return segment.get(INT, offset);
+    }
+
+    static long readLong(MemorySegment segment, long offset) {
+        return segment.get(LONG, offset);
+    }
+
+    /**
+     * Reads a string written as its length in bytes, or -1 for null,
+     * followed by its UTF-8 bytes.
+     */
+    static String readString(MemorySegment segment, long offset) {
+        int length = segment.get(INT, offset);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset + 4,
+                bytes, 0, length);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Returns how many bytes the string at <code>offset</code> takes.
+     */
+    static long getStringSize(MemorySegment segment, long offset) {
+        return 4 + Math.max(0, segment.get(INT, offset));
+    }
+
+    private long getRecord(int row) {
+        return recordsOffset + (long)row * RECORD_SIZE;
+    }
+
+    @Override
+    long getPosition(int row) {
+        return segment.get(LONG, getRecord(row) + POSITION);
+    }
+
+    @Override
+    long getBodyStart(int row) {
+        return segment.get(LONG, getRecord(row) + BODY_START);
+    }
+
+    @Override
+    long getBodyEnd(int row) {
+        return segment.get(LONG, getRecord(row) + BODY_END);
+    }
+
+    @Override
+    public long getDate(int row) {
+        return segment.get(LONG, getRecord(row) + DATE);
+    }
+
+    @Override
+    public int getSenderId(int row) {
+        int sender = segment.get(INT, getRecord(row) + SENDER);
+        return (sender < 0) ? -1 : contactIds[sender];
+    }
+
+    @Override
+    public int getSubjectId(int row) {
+        return segment.get(INT, getRecord(row) + SUBJECT);
+    }
+
+    @Override
+    int[] getList(int row, int list) {
+        long offset = listsOffset +
+                4L * segment.get(INT, getRecord(row) + LISTS);
+        for (int i = 0; i < list; i++) {
+            offset += 4L * (1 + Math.max(0, segment.get(INT, offset)));
+        }
+        int length = segment.get(INT, offset);
+        if (length < 0) {
+            return null;
+        }
+        int[] ids = new int[length];
+        for (int i = 0; i < length; i++) {
+            int id = segment.get(INT, offset + 4L * (i + 1));
+            ids[i] = (list == REFERENCES) ? id : contactIds[id];
+        }
+        return ids;
+    }
+
+    @Override
+    public String getString(int id) {
+        int slot = id & (STRING_CACHE_SIZE - 1);
+        CachedString cached = stringCache[slot];
+        if (cached == null || cached.id != id) {
+            cached = new CachedString(id, readString(segment,
+                    segment.get(LONG, stringsOffset + 8L * id)));
+            stringCache[slot] = cached;
+        }
+        return cached.string;
+    }
+
+    private String getString(int row, int field) {
+        int id = segment.get(INT, getRecord(row) + field);
+        return (id < 0) ? null : getString(id);
+    }
+
+    @Override
+    String getID(int row) {
+        return getString(row, ID);
+    }
+
+    @Override
+    String getPreview(int row) {
+        return getString(row, PREVIEW);
+    }
+
+
+    // Immutable, so that threads sharing the cache see it whole
+    private static final class CachedString {
+        final int id;
+        final String string;
+
+        CachedString(int id, String string) {
+            this.id = id;
+            this.string = string;
+        }
+    }
+}
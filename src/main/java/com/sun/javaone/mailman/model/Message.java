@@ -32,28 +32,27 @@
 package com.sun.javaone.mailman.model;
 
 import java.io.IOException;
-import java.lang.ref.SoftReference;
 import java.util.Date;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 
+/**
+ * A message of a mailbox. Its headers and the offsets of its body are kept
+ * in the header table of the mailbox, and the message only holds its row
+ * in it.
+ */
 public class Message {
     private final MailBox mailBox;
-    private final int position;
-    private String id;
-    private Contact from;
-    private Contact[] to;
-    private Contact[] cc;
-    private String subject;
-    private long date;
-    private String[] refs;
-    private SoftReference<String> bodyRef;
+    private final HeaderTable headers;
+    private final int row;
+    private int ordinal = -1;
     private boolean read;
 
-    public Message(MailBox mailBox, int position) {
+    Message(MailBox mailBox, HeaderTable headers, int row) {
         this.mailBox = mailBox;
-        this.position = position;
+        this.headers = headers;
+        this.row = row;
     }
 
     public void setRead(boolean read) {
@@ -64,21 +63,76 @@ public class Message {
         return read;
     }
 
-    int getPosition() {
-        return position;
+    /**
+     * Returns the header table holding the headers of the message.
+     */
+    public HeaderTable getHeaderTable() {
+        return headers;
+    }
+
+    /**
+     * Returns the row of the message in its header table.
+     */
+    public int getRow() {
+        return row;
+    }
+
+    long getPosition() {
+        return headers.getPosition(row);
+    }
+
+    MailBox getMailBox() {
+        return mailBox;
+    }
+
+    /**
+     * Returns the position of the message among those loaded from the
+     * mbox file, or -1 if it is not known yet.
+     */
+    int getOrdinal() {
+        return ordinal;
+    }
+
+    void setOrdinal(int ordinal) {
+        this.ordinal = ordinal;
+    }
+
+    /**
+     * Returns the offset of the body in the mbox file.
+     */
+    long getBodyStart() {
+        return headers.getBodyStart(row);
+    }
+
+    /**
+     * Returns the offset following the body in the mbox file.
+     */
+    long getBodyEnd() {
+        return headers.getBodyEnd(row);
+    }
+
+    String getID() {
+        return headers.getID(row);
+    }
+
+    String[] getReferences() {
+        return headers.getReferences(row);
     }
 
     @Override
     public String toString() {
+        Contact[] to = getTo();
+        Contact[] cc = getCc();
+        String[] refs = getReferences();
         return "Message [" +
-                "id=" + id +
+                "id=" + getID() +
                 "read=" + read+
-                " subject=" + subject +
-                " from=" + from +
+                " subject=" + getSubject() +
+                " from=" + getFrom() +
                 " to=" + ((to == null) ? "" : Arrays.asList(to)) +
                 " cc=" + ((cc == null) ? "" : Arrays.asList(cc)) +
                 " refs=" + ((refs == null) ? "" : Arrays.asList(refs)) +
-                " date=" + new Date(date) + "]";
+                " date=" + new Date(getDateTime()) + "]";
     }
 
 //    public Message(Contact from, Contact[] to, Contact[] cc, String subject,
@@ -103,7 +157,7 @@ public class Message {
 //    }
 
     public long getDateTime() {
-        return date;
+        return headers.getDate(row);
     }
 
     public Map<String, String> getHeaders() {
@@ -112,51 +166,68 @@ public class Message {
 //        return null;
     }
 
-    /**
-     * Returns a clone of the contact
-     */
     public Contact getFrom() {
-        return from;
+        return headers.getFrom(row);
     }
 
     /**
-     * Returns a clone of the contacts
+     * Returns a new array of the contacts
      */
     public Contact[] getTo() {
-        if (to == null) {
-            return to;
-        }
-        return to.clone();
+        return headers.getContacts(row, HeaderTable.TO);
     }
 
     /**
-     * Returns a clone of the contacts
+     * Returns a new array of the contacts
      */
     public Contact[] getCc() {
-        if (cc == null) {
-            return null;
-        }
-        return cc.clone();
+        return headers.getContacts(row, HeaderTable.CC);
     }
 
     public String getSubject() {
-        return subject;
+        return headers.getSubject(row);
     }
 
     public String getBody() {
-        String body;
-        if (bodyRef == null || (body = bodyRef.get()) == null) {
+        BodyCache cache = mailBox.getBodyCache();
+        String body = cache.get(this);
+        if (body == null) {
             try {
                 body = mailBox.getBody(this);
+                cache.put(this, body);
             } catch (IOException ex) {
                 ex.printStackTrace();
                 body = "";
             }
-            bodyRef = new SoftReference<String>(body);
         }
         return body;
     }
 
+    /**
+     * Returns the start of the body with its whitespace collapsed, or null
+     * if it was not taken when the headers were parsed. This never reads
+     * the mbox file.
+     */
+    public String getPreview() {
+        return headers.getPreview(row);
+    }
+
+    /**
+     * Returns the body if it is cached, or null. Unlike
+     * <code>getBody</code>, this never reads the mbox file.
+     */
+    public String getCachedBody() {
+        return mailBox.getBodyCache().get(this);
+    }
+
+    /**
+     * Returns true if the body is cached, without counting a cache hit or
+     * miss.
+     */
+    public boolean isBodyCached() {
+        return mailBox.getBodyCache().contains(this);
+    }
+
     public Attachment[] getAttachment() {
         throw new RuntimeException("attachment");
 //        return null;
@@ -203,32 +274,4 @@ public class Message {
 //        result = 29 * result + (dateTime != null ? dateTime.hashCode() : 0);
 //        return result;
 //    }
-
-    void setCc(Contact[] contact) {
-        this.cc = contact;
-    }
-
-    void setDate(long date) {
-        this.date = date;
-    }
-
-    void setFrom(Contact from) {
-        this.from = from;
-    }
-
-    void setID(String id) {
-        this.id = id;
-    }
-
-    void setReferences(String[] refs) {
-        this.refs = refs;
-    }
-
-    void setSubject(String subject) {
-        this.subject = subject;
-    }
-
-    void setTo(Contact[] to) {
-        this.to = to;
-    }
 }
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.javaone.mailman.model;
+
+/**
+ * A search combining conditions on the headers and body of messages, for
+ * <code>MailBox.find</code>. A message matches if it meets every condition
+ * that is set. Text conditions are case sensitive substrings, as with the
+ * <code>findBy</code> methods of <code>MailBox</code>, unless the query
+ * ignores case.
+ */
+public final class MessageQuery {
+    private String sender;
+    private String recipient;
+    private String subject;
+    private String senderOrSubject;
+    private String content;
+    private boolean ignoreCase;
+    private long after = Long.MIN_VALUE;
+    private long before = Long.MAX_VALUE;
+
+    /**
+     * Matches messages whose sender has <code>sender</code> in a name or
+     * its address.
+     */
+    public MessageQuery setSender(String sender) {
+        this.sender = sender;
+        return this;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * Matches messages with a recipient that has <code>recipient</code> in
+     * a name or its address.
+     */
+    public MessageQuery setRecipient(String recipient) {
+        this.recipient = recipient;
+        return this;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public MessageQuery setSubject(String subject) {
+        this.subject = subject;
+        return this;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * Matches messages whose subject has <code>text</code>, or whose sender
+     * has it in a name or its address.
+     */
+    public MessageQuery setSenderOrSubject(String text) {
+        this.senderOrSubject = text;
+        return this;
+    }
+
+    public String getSenderOrSubject() {
+        return senderOrSubject;
+    }
+
+    public MessageQuery setContent(String content) {
+        this.content = content;
+        return this;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    /**
+     * Matches messages sent from <code>after</code>, inclusive, to
+     * <code>before</code>, exclusive.
+     */
+    public MessageQuery setDateRange(long after, long before) {
+        this.after = after;
+        this.before = before;
+        return this;
+    }
+
+    public long getAfter() {
+        return after;
+    }
+
+    public long getBefore() {
+        return before;
+    }
+
+    /**
+     * Makes the sender, recipient and subject conditions ignore case. The
+     * content condition is always case sensitive.
+     */
+    public MessageQuery setIgnoreCase(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        return this;
+    }
+
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageQuery [sender=" + sender +
+                " recipient=" + recipient +
+                " subject=" + subject +
+                " senderOrSubject=" + senderOrSubject +
+                " content=" + content +
+                " after=" + after +
+                " before=" + before +
+                " ignoreCase=" + ignoreCase + "]";
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.javaone.mailman.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of the three char sequences of strings, to find the strings
+ * containing a substring without testing each of them. Strings are
+ * identified by ids given by the caller, in ascending order; several
+ * strings may share an id. Lookups ignore case and return candidates, which
+ * are to be checked with <code>String.contains</code> or
+ * <code>String.regionMatches</code>.
+ */
+final class TrigramIndex {
+    private final Map<Long,Postings> trigrams = new HashMap<Long,Postings>();
+
+    /**
+     * Indexes <code>text</code> under <code>id</code>, which must not be
+     * less than the ids added before.
+     */
+    void add(int id, String text) {
+        if (text == null) {
+            return;
+        }
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            Long key = getKey(text, i);
+            Postings postings = trigrams.get(key);
+            if (postings == null) {
+                postings = new Postings();
+                trigrams.put(key, postings);
+            }
+            postings.add(id);
+        }
+    }
+
+    void clear() {
+        trigrams.clear();
+    }
+
+    /**
+     * Returns the ids of the strings that may contain <code>text</code>,
+     * or null if it is too short for the index to tell.
+     */
+    BitSet find(String text) {
+        if (text.length() < 3) {
+            return null;
+        }
+        int count = text.length() - 2;
+        Postings[] lists = new Postings[count];
+        for (int i = 0; i < count; i++) {
+            lists[i] = trigrams.get(getKey(text, i));
+            if (lists[i] == null) {
+                return new BitSet();
+            }
+        }
+        // Intersect starting with the shortest list
+        Arrays.sort(lists, new Comparator<Postings>() {
+            @Override
+            public int compare(Postings p1, Postings p2) {
+                return p1.size - p2.size;
+            }
+        });
+        int[] ids = Arrays.copyOf(lists[0].ids, lists[0].size);
+        int size = ids.length;
+        for (int i = 1; i < count && size > 0; i++) {
+            if (lists[i] != lists[i - 1]) {
+                size = lists[i].retain(ids, size);
+            }
+        }
+        BitSet result = new BitSet();
+        for (int i = 0; i < size; i++) {
+            result.set(ids[i]);
+        }
+        return result;
+    }
+
+    private static Long getKey(String text, int index) {
+        return ((long)fold(text.charAt(index)) << 32) |
+                ((long)fold(text.charAt(index + 1)) << 16) |
+                fold(text.charAt(index + 2));
+    }
+
+    // Chars equal ignoring case, as String.regionMatches tells, fold the same
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * The ascending ids of the strings holding a trigram.
+     */
+    private static final class Postings {
+        int[] ids = new int[2];
+        int size;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        /**
+         * Keeps the first <code>size</code> of <code>candidates</code>
+         * that are in this list, returning how many are left.
+         */
+        int retain(int[] candidates, int size) {
+            int kept = 0;
+            int i = 0;
+            for (int c = 0; c < size; c++) {
+                int id = candidates[c];
+                while (i < this.size && ids[i] < id) {
+                    i++;
+                }
+                if (i == this.size) {
+                    break;
+                }
+                if (ids[i] == id) {
+                    candidates[kept++] = id;
+                }
+            }
+            return kept;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.javaone.mailman.ui;
+
+import com.sun.javaone.mailman.model.Message;
+import java.awt.Component;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads message bodies on a background thread ahead of the views showing
+ * them, so that painting never waits on the disk. The renderers ask for
+ * the bodies they could not find in the cache, which are loaded first,
+ * newest request first. Each view asks for the screens around its visible
+ * rows, and the views take turns once no renderer is waiting. The
+ * component that asked is repainted as each body arrives.
+ */
+public class BodyPrefetcher {
+    private static final BodyPrefetcher INSTANCE = new BodyPrefetcher();
+
+    private final Executor executor;
+    // Bodies asked for by the renderers, the newest first, and the rows to
+    // prefetch for each view, in the order the views take turns. Guarded
+    // by requests.
+    private final Deque<Request> requests;
+    private final Set<Request> requested;
+    private final Map<Component,Deque<Message>> windows;
+    private boolean running;
+
+    public static BodyPrefetcher getInstance() {
+        return INSTANCE;
+    }
+
+    BodyPrefetcher() {
+        requests = new ArrayDeque<Request>();
+        requested = new HashSet<Request>();
+        windows = new LinkedHashMap<Component,Deque<Message>>();
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Body prefetcher");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Loads the body of <code>message</code> before any prefetched body,
+     * and repaints <code>c</code> once it is loaded.
+     */
+    public void fetch(Component c, Message message) {
+        Request request = new Request(c, message);
+        synchronized (requests) {
+            if (!requested.add(request)) {
+                requests.remove(request);
+            }
+            requests.addFirst(request);
+            start();
+        }
+    }
+
+    /**
+     * Loads the bodies of the rows <code>first</code> to <code>last</code>
+     * of <code>messages</code>, then of the screen of rows after them and
+     * of the screen before them. This replaces the rows asked for by
+     * earlier calls for <code>c</code> that are not loaded yet, but not
+     * those of other components or of <code>fetch</code>. Must be called
+     * on the EDT.
+     */
+    public void prefetch(Component c, List<Message> messages, int first,
+            int last) {
+        int count = messages.size();
+        int screen = last - first + 1;
+        Deque<Message> window = new ArrayDeque<Message>();
+        for (int row = Math.max(0, first);
+                row < Math.min(count, last + 1 + screen); row++) {
+            add(window, messages.get(row));
+        }
+        for (int row = first - 1; row >= Math.max(0, first - screen);
+                row--) {
+            add(window, messages.get(row));
+        }
+        synchronized (requests) {
+            if (window.isEmpty()) {
+                windows.remove(c);
+            } else {
+                windows.put(c, window);
+                start();
+            }
+        }
+    }
+
+    private static void add(Deque<Message> window, Message message) {
+        if (message != null) {
+            window.addLast(message);
+        }
+    }
+
+    private void start() {
+        if (!running && (!requests.isEmpty() || !windows.isEmpty())) {
+            running = true;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    loadPending();
+                }
+            });
+        }
+    }
+
+    private void loadPending() {
+        for (;;) {
+            Message message;
+            Component c;
+            synchronized (requests) {
+                Request request = requests.pollFirst();
+                if (request != null) {
+                    requested.remove(request);
+                    message = request.message;
+                    c = request.component;
+                } else {
+                    Iterator<Map.Entry<Component,Deque<Message>>> next =
+                            windows.entrySet().iterator();
+                    if (!next.hasNext()) {
+                        running = false;
+                        return;
+                    }
+                    Map.Entry<Component,Deque<Message>> entry = next.next();
+                    next.remove();
+                    c = entry.getKey();
+                    message = entry.getValue().pollFirst();
+                    if (!entry.getValue().isEmpty()) {
+                        // The view goes last in the turns
+                        windows.put(c, entry.getValue());
+                    }
+                }
+            }
+            if (!message.isBodyCached()) {
+                message.getBody();
+                // repaint() is safe off the EDT and coalesces
+                c.repaint();
+            }
+        }
+    }
+
+    // A body asked for by a renderer, and the component to repaint
+    private static final class Request {
+        final Component component;
+        final Message message;
+
+        Request(Component component, Message message) {
+            this.component = component;
+            this.message = message;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Request)) {
+                return false;
+            }
+            Request request = (Request)o;
+            return component == request.component &&
+                    message == request.message;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(component) +
+                    System.identityHashCode(message);
+        }
+    }
+}
@@ -31,8 +31,6 @@
 
 package com.sun.javaone.mailman.ui;
 
-import binding.BindingContext;
-import binding.ListBindingDescription;
 import com.sun.javaone.mailman.model.Contact;
 import com.sun.javaone.mailman.model.Message;
 import java.awt.Color;
@@ -40,11 +38,16 @@ import java.awt.Component;
 import java.awt.GradientPaint;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -54,9 +57,16 @@ import javax.swing.JMenu;
 import javax.swing.JMenuItem;
 import javax.swing.JPopupMenu;
 import javax.swing.JTable;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 import javax.swing.border.Border;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+import javax.swing.event.TableModelEvent;
 import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.TableColumnModel;
 
@@ -76,9 +86,28 @@ public class MailTable extends JTable {
         Color.WHITE, new Color(64, 110, 161), Color.WHITE
     };
     private final UIController controller;
+    private final MessageTableModel model;
     private boolean showTableStriping;
+    // True while the selection and the controller are being synchronized
+    private boolean updatingSelection;
 
     private final Map<String,Integer> colorMap;
+    // Row highlights by color index, for rows of rowPaintsHeight
+    private GradientPaint[] rowPaints;
+    private int rowPaintsHeight;
+
+    // The visible rows bodies were last prefetched for
+    private int prefetchFirst = -1;
+    private int prefetchLast = -1;
+    private Message prefetchAnchor;
+    private boolean prefetchScheduled;
+    // Prefetches as the table is scrolled or resized in its viewport
+    private final ChangeListener viewportListener = new ChangeListener() {
+        @Override
+        public void stateChanged(ChangeEvent e) {
+            schedulePrefetch();
+        }
+    };
 
 
     public MailTable(UIController controller) {
@@ -89,20 +118,92 @@ public class MailTable extends JTable {
         UIManager.put("Table.focusCellHighlightBorder", emptyBorder);
         setDragEnabled(true);
         setName("mailTable");
+
+        model = new MessageTableModel();
+        model.setColors(colorMap);
+        model.setMessages(controller.getMessages());
+        setModel(model);
+        controller.addPropertyChangeListener("messages",
+                new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                model.setMessages(MailTable.this.controller.getMessages());
+            }
+        });
+        controller.addPropertyChangeListener("selectedMessage",
+                new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if (!updatingSelection) {
+                    selectMessage((Message)evt.getNewValue());
+                }
+            }
+        });
+        getSelectionModel().addListSelectionListener(
+                new ListSelectionListener() {
+            @Override
+            public void valueChanged(ListSelectionEvent e) {
+                if (!e.getValueIsAdjusting() && !updatingSelection) {
+                    int row = getSelectedRow();
+                    updatingSelection = true;
+                    try {
+                        MailTable.this.controller.setSelectedMessage(
+                                (row < 0) ? null : model.getMessage(row));
+                    } finally {
+                        updatingSelection = false;
+                    }
+                }
+            }
+        });
+        getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int column = getTableHeader().columnAtPoint(e.getPoint());
+                if (column >= 0) {
+                    model.sort(convertColumnIndexToModel(column));
+                }
+            }
+        });
     }
 
+    /**
+     * Keeps the selected message selected when the rows are reordered or
+     * replaced.
+     */
     @Override
-    public boolean isCellEditable(int row, int column) {
-        return false;
+    public void tableChanged(TableModelEvent e) {
+        schedulePrefetch();
+        if (model == null || e.getLastRow() != Integer.MAX_VALUE) {
+            super.tableChanged(e);
+            return;
+        }
+        updatingSelection = true;
+        try {
+            super.tableChanged(e);
+            selectMessage(controller.getSelectedMessage());
+        } finally {
+            updatingSelection = false;
+        }
+    }
+
+    private void selectMessage(Message message) {
+        int row = (message == null) ? -1 : model.getRow(message);
+        boolean updating = updatingSelection;
+        updatingSelection = true;
+        try {
+            if (row < 0) {
+                clearSelection();
+            } else if (getSelectedRow() != row) {
+                setRowSelectionInterval(row, row);
+            }
+        } finally {
+            updatingSelection = updating;
+        }
     }
 
-    void addBindings(UIController controller, BindingContext context) {
-        ListBindingDescription tableBD = new ListBindingDescription(
-                controller, "selectedMailBox.messages", this, "elements");
-        tableBD.addDescription("subject", "1.value");
-        tableBD.addDescription("from.displayName", "2.value");
-        tableBD.addDescription("dateTime", "3.value");
-        context.addDescription(tableBD);
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return false;
     }
 
     void bound() {
@@ -120,6 +221,23 @@ public class MailTable extends JTable {
         cm.getColumn(3).setCellRenderer(new DateRenderer());
     }
 
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        if (getParent() instanceof JViewport) {
+            ((JViewport)getParent()).addChangeListener(viewportListener);
+        }
+        schedulePrefetch();
+    }
+
+    @Override
+    public void removeNotify() {
+        if (getParent() instanceof JViewport) {
+            ((JViewport)getParent()).removeChangeListener(viewportListener);
+        }
+        super.removeNotify();
+    }
+
     @Override
     protected void paintComponent(Graphics g) {
         Rectangle clip = g.getClipBounds();
@@ -148,33 +266,89 @@ public class MailTable extends JTable {
     }
 
     private void highlightRows(Graphics g, int startRow, int endRow) {
-        if (controller.getSelectedMailBox() != null && colorMap.size() > 0) {
-            List<Message> messages = controller.getSelectedMailBox().getMessages();
+        if (colorMap.size() > 0) {
+            Graphics2D g2 = (Graphics2D)g;
             int rh = getRowHeight();
             int width = getWidth();
-            ((Graphics2D)g).setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
                     RenderingHints.VALUE_ANTIALIAS_ON);
             for (int row = startRow; row < endRow; row++) {
-                String address = getAddress(messages.get(row));
-                Integer colorIndex = colorMap.get(address);
-                if (colorIndex != null) {
-                    int offset = colorIndex;
+                int colorIndex = model.getColorIndex(row);
+                if (colorIndex >= 0) {
                     int x = 4;
-                    int y = rh * row + 2;
+                    int y = rh * row;
                     int w = width - 8;
                     int h = rh - 4;
                     int arcSize = 12;
-                    ((Graphics2D)g).setPaint(new GradientPaint(x, y, COLORS[offset * 3], x, y + h, COLORS[offset * 3 + 1]));
-                    g.fillRoundRect(x, y, w, h, arcSize, arcSize);
-                    g.setColor(COLORS[offset * 3 + 2]);
+                    // The paints are made for the first row
+                    g2.translate(0, y);
+                    g2.setPaint(getRowPaint(colorIndex, rh));
+                    g.fillRoundRect(x, 2, w, h, arcSize, arcSize);
+                    g2.translate(0, -y);
 //                            g.drawRoundRect(x, y, w - 1, h - 1, arcSize, arcSize);
                 }
             }
-            ((Graphics2D)g).setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
                     RenderingHints.VALUE_ANTIALIAS_OFF);
         }
     }
 
+    private Paint getRowPaint(int colorIndex, int rowHeight) {
+        if (rowPaints == null || rowPaintsHeight != rowHeight) {
+            rowPaints = new GradientPaint[COLOR_TITLES.length];
+            rowPaintsHeight = rowHeight;
+        }
+        GradientPaint paint = rowPaints[colorIndex];
+        if (paint == null) {
+            paint = new GradientPaint(4, 2, COLORS[colorIndex * 3],
+                    4, rowHeight - 2, COLORS[colorIndex * 3 + 1]);
+            rowPaints[colorIndex] = paint;
+        }
+        return paint;
+    }
+
+    // Prefetches once the current events are handled, as the rows may not
+    // be laid out yet and a batch of changes only needs one prefetch
+    private void schedulePrefetch() {
+        if (prefetchScheduled) {
+            return;
+        }
+        prefetchScheduled = true;
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                prefetchScheduled = false;
+                prefetchBodies();
+            }
+        });
+    }
+
+    private void prefetchBodies() {
+        int rowCount = getRowCount();
+        if (rowCount == 0) {
+            return;
+        }
+        Rectangle visible = getVisibleRect();
+        int first = rowAtPoint(visible.getLocation());
+        int last = rowAtPoint(new Point(visible.x,
+                visible.y + visible.height - 1));
+        List<Message> messages = model.getMessages();
+        if (first < 0 || first >= messages.size()) {
+            return;
+        }
+        if (last < 0) {
+            last = rowCount - 1;
+        }
+        Message anchor = messages.get(first);
+        if (first != prefetchFirst || last != prefetchLast ||
+                anchor != prefetchAnchor) {
+            prefetchFirst = first;
+            prefetchLast = last;
+            prefetchAnchor = anchor;
+            BodyPrefetcher.getInstance().prefetch(this, messages, first, last);
+        }
+    }
+
     @Override
     protected void processMouseEvent(MouseEvent e) {
         super.processMouseEvent(e);
@@ -233,9 +407,8 @@ public class MailTable extends JTable {
 
     private void colorize(int index) {
         int[] selection = getSelectedRows();
-        List<Message> messages = controller.getSelectedMailBox().getMessages();
         for (int i = 0; i < selection.length; i++) {
-            Message message = messages.get(selection[i]);
+            Message message = model.getMessage(selection[i]);
             String address = getAddress(message);
             if (address != null) {
                 if (index >= COLOR_TITLES.length) {
@@ -245,6 +418,7 @@ public class MailTable extends JTable {
                 }
             }
         }
+        model.setColors(colorMap);
         repaint();
     }
 
@@ -288,13 +462,14 @@ public class MailTable extends JTable {
     }
 
 
-    private static class DateRenderer extends DefaultTableCellRenderer {
+    // Reads the dates from the model as longs instead of cell values
+    private class DateRenderer extends DefaultTableCellRenderer {
         @Override
         public Component getTableCellRendererComponent(JTable table, Object value,
                 boolean isSelected, boolean hasFocus, int row, int column) {
             return super.getTableCellRendererComponent(table,
-                    DateHelper.convert((Long)value), isSelected, hasFocus, row,
-                    column);
+                    DateHelper.convert(model.getDate(row)), isSelected,
+                    hasFocus, row, column);
         }
     }
 }
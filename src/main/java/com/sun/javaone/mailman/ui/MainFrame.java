@@ -93,6 +93,7 @@ public class MainFrame extends javax.swing.JFrame {
     ComposeMailFrame sharedFrame;
 
     private final UIController controller;
+    private final MessageSearcher searcher;
     private final GlobalKeyStrokeHandler globalKeyListener;
 
     private final JMenuItem ds = new JCheckBoxMenuItem("Drop Shadows");
@@ -119,6 +120,7 @@ public class MainFrame extends javax.swing.JFrame {
 
         controller = new UIController();
         controller.setAccount(Application.getAccounts()[0]);
+        searcher = new MessageSearcher(controller);
 
         initComponents();
         initBindings();
@@ -189,11 +191,6 @@ public class MainFrame extends javax.swing.JFrame {
         context.addDescription(new BindingDescription(
                 controller, "selectedElement", foldersTree, "selectedElement"));
 
-        mailTable.addBindings(controller, context);
-
-        context.addDescription(new BindingDescription(
-                controller, "selectedMessage", mailTable, "selectedElement"));
-
         context.addDescription(new BindingDescription(
                 controller, "selectedMessage.body", messageView, "text"));
 
@@ -274,7 +271,7 @@ public class MainFrame extends javax.swing.JFrame {
             });
             BindingContext context = new BindingContext();
             ListBindingDescription listBD = new ListBindingDescription(
-                    controller, "selectedMailBox.messages", listPanel.getList(), "elements");
+                    controller, "messages", listPanel.getList(), "elements");
             context.addDescription(listBD);
             context.addDescription(new BindingDescription(
                     controller, "selectedMessage", listPanel.getList(), "selectedElement"));
@@ -491,7 +488,13 @@ public class MainFrame extends javax.swing.JFrame {
         findCollapsiblePane = new JXCollapsiblePane();
         JPanel jPanel1 = new JPanel();
         //JSeparator jSeparator4 = new JSeparator();
-        searchPanel = new JXSearchPanel();
+        searchPanel = new JXSearchPanel() {
+            @Override
+            public void match() {
+                super.match();
+                searcher.search(getPatternModel().getRawText());
+            }
+        };
         JButton closeSearchPanel = new JButton();
         floatablePanel = new ResizableJXPanel();
         foldersCollapsiblePane = new JXCollapsiblePane();
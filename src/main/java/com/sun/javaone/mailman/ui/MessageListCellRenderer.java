@@ -37,12 +37,22 @@ import java.awt.Color;
 import java.awt.Component;
 import java.awt.Font;
 import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.GraphicsConfiguration;
+import java.awt.Dimension;
+import java.awt.Insets;
+import java.awt.image.BufferedImage;
 import java.text.BreakIterator;
 import java.text.CharacterIterator;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import javax.swing.CellRendererPane;
 import javax.swing.GroupLayout;
+import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JPanel;
@@ -51,27 +61,92 @@ import javax.swing.border.EmptyBorder;
 import javax.swing.border.LineBorder;
 
 /**
+ * Renders messages with their sender's picture and the first lines of
+ * their body. Laying out and wrapping a row is costly, so the rows are
+ * painted into images kept for the most recently shown messages, one
+ * cache for each of the plain, striped and selected looks. An image is
+ * kept with the read state it was painted with, and is painted again when
+ * that changes. The caches are cleared when the width of the list
+ * changes, and when a name, address or picture of a contact changes.
  *
  * @author sky
  */
-public class MessageListCellRenderer implements ListCellRenderer {
+public class MessageListCellRenderer implements ListCellRenderer<Object> {
     private static final int IS = 48;
     private static final Color FROM_COLOR = new Color(0,  81, 212);
+    // Shown until the body is loaded by the prefetcher
+    private static final String PLACEHOLDER = "Loading\u2026";
+
+    private static final int PLAIN = 0;
+    private static final int STRIPED = 1;
+    private static final int SELECTED = 2;
+    private static final int[] CACHE_SIZES = new int[] { 64, 64, 8 };
 
     private final RendererPanel panel;
+    private final RowImage rowImage;
+    // Images of the rows by look, for rows as wide as rowImagesWidth and
+    // contacts as of rowImagesContacts
+    private final List<Map<Message,CachedRow>> rowImages;
+    private int rowImagesWidth;
+    private int rowImagesContacts;
 
     public MessageListCellRenderer() {
         panel = new RendererPanel();
+        rowImage = new RowImage();
+        rowImages = new ArrayList<Map<Message,CachedRow>>(CACHE_SIZES.length);
+        for (final int size : CACHE_SIZES) {
+            rowImages.add(new LinkedHashMap<Message,CachedRow>(
+                    size * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Message,CachedRow> eldest) {
+                    return size() > size;
+                }
+            });
+        }
+        rowImagesContacts = Contact.getModificationCount();
     }
 
     @Override
-    public Component getListCellRendererComponent(JList list, Object value,
+    public Component getListCellRendererComponent(JList<?> list, Object value,
             int index, boolean isSelected, boolean cellHasFocus) {
-        if (value instanceof String) {
-            panel.setMessage(null);
-        } else {
-            panel.setMessage((Message)value);
+        if (!(value instanceof Message)) {
+            configure(list, null, index, isSelected);
+            return panel;
         }
+
+        Message message = (Message)value;
+        if (list.getWidth() != rowImagesWidth ||
+                Contact.getModificationCount() != rowImagesContacts) {
+            rowImagesWidth = list.getWidth();
+            rowImagesContacts = Contact.getModificationCount();
+            for (Map<Message,CachedRow> images : rowImages) {
+                images.clear();
+            }
+        }
+        int look = isSelected ? SELECTED :
+            (((index % 2) == 0) ? STRIPED : PLAIN);
+        CachedRow cached = rowImages.get(look).get(message);
+        BufferedImage image = (cached == null ||
+                cached.read != message.isRead()) ? null : cached.image;
+        if (image == null) {
+            configure(list, message, index, isSelected);
+        }
+        rowImage.setRow(list, message, index, look, image);
+        return rowImage;
+    }
+
+    /**
+     * Returns the height of the rows, computed from the fonts of the
+     * labels and the size of the pictures instead of laying a row out.
+     */
+    int getRowHeight() {
+        return panel.getRowHeight();
+    }
+
+    private void configure(JList<?> list, Message message, int index,
+            boolean isSelected) {
+        panel.setMessage(list, message);
         if (isSelected) {
             adjustColors(list.getSelectionBackground(),
                     list.getSelectionForeground());
@@ -86,7 +161,6 @@ public class MessageListCellRenderer implements ListCellRenderer {
                 c.setForeground(Color.DARK_GRAY);
             }
         }
-        return panel;
     }
 
     private void adjustColors(Color bg, Color fg) {
@@ -100,6 +174,82 @@ public class MessageListCellRenderer implements ListCellRenderer {
         return 2;
     }
 
+    /**
+     * Paints the image of a row, rendering it with the panel first if it
+     * is not cached.
+     */
+    private final class RowImage extends JComponent {
+        private final CellRendererPane rendererPane;
+        private JList<?> list;
+        private Message message;
+        private int index;
+        private int look;
+        private BufferedImage image;
+
+        RowImage() {
+            rendererPane = new CellRendererPane();
+            add(rendererPane);
+            setOpaque(true);
+        }
+
+        void setRow(JList<?> list, Message message, int index, int look,
+                BufferedImage image) {
+            this.list = list;
+            this.message = message;
+            this.index = index;
+            this.look = look;
+            this.image = image;
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            if (image != null) {
+                return new Dimension(image.getWidth(), image.getHeight());
+            }
+            return panel.getPreferredSize();
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            int width = getWidth();
+            int height = getHeight();
+            if (width <= 0 || height <= 0) {
+                return;
+            }
+            if (image == null || image.getWidth() != width ||
+                    image.getHeight() != height) {
+                if (image != null) {
+                    // Cached at another height, lay the row out again
+                    configure(list, message, index, look == SELECTED);
+                }
+                GraphicsConfiguration gc = list.getGraphicsConfiguration();
+                image = (gc != null) ? gc.createCompatibleImage(width, height) :
+                    new BufferedImage(width, height,
+                        BufferedImage.TYPE_INT_RGB);
+                Graphics imageG = image.getGraphics();
+                rendererPane.paintComponent(imageG, panel, this, 0, 0,
+                        width, height, true);
+                imageG.dispose();
+                if (panel.isComplete()) {
+                    rowImages.get(look).put(message,
+                            new CachedRow(image, message.isRead()));
+                }
+            }
+            g.drawImage(image, 0, 0, null);
+        }
+    }
+
+    // The image of a row and the read state it shows
+    private static final class CachedRow {
+        final BufferedImage image;
+        final boolean read;
+
+        CachedRow(BufferedImage image, boolean read) {
+            this.image = image;
+            this.read = read;
+        }
+    }
+
     private static class RendererPanel extends JPanel {
         private final JLabel dateLabel;
         private final JLabel[] labels;
@@ -109,6 +259,8 @@ public class MessageListCellRenderer implements ListCellRenderer {
         private final List<Component> toAdjust;
         private final char[] tmpChars;
         private String text;
+        // False while the body is being loaded and text is the placeholder
+        private boolean complete;
         private int layoutWidth;
 
         RendererPanel() {
@@ -179,7 +331,36 @@ public class MessageListCellRenderer implements ListCellRenderer {
             toAdjust.add(fromLabel);
         }
 
-        public void setMessage(Message m) {
+        // The layout stacks the subject and date line, the body lines and
+        // the last body line with the sender, without gaps
+        int getRowHeight() {
+            FontMetrics subjectMetrics = getFontMetrics(subjectLabel.getFont());
+            FontMetrics dateMetrics = getFontMetrics(dateLabel.getFont());
+            FontMetrics textMetrics = getFontMetrics(labels[0].getFont());
+            FontMetrics fromMetrics = getFontMetrics(fromLabel.getFont());
+            int textHeight = getLineHeight(subjectMetrics, dateMetrics) +
+                    (labels.length - 1) * textMetrics.getHeight() +
+                    getLineHeight(textMetrics, fromMetrics);
+            Insets insets = getInsets();
+            return insets.top + Math.max(IS, textHeight) + insets.bottom;
+        }
+
+        // Height of two labels aligned on their baseline
+        private static int getLineHeight(FontMetrics fm1, FontMetrics fm2) {
+            return Math.max(fm1.getAscent(), fm2.getAscent()) +
+                    Math.max(fm1.getHeight() - fm1.getAscent(),
+                        fm2.getHeight() - fm2.getAscent());
+        }
+
+        /**
+         * Returns false while the body of the message is being loaded.
+         */
+        boolean isComplete() {
+            return complete;
+        }
+
+        public void setMessage(JList<?> list, Message m) {
+            complete = true;
             if (m == null) {
                 text = null;
                 subjectLabel.setText(" ");
@@ -192,7 +373,15 @@ public class MessageListCellRenderer implements ListCellRenderer {
                 } else {
                     imagePanel.setImage(null);
                 }
-                text = m.getBody();
+                text = m.getPreview();
+                if (text == null) {
+                    text = m.getCachedBody();
+                }
+                if (text == null) {
+                    BodyPrefetcher.getInstance().fetch(list, m);
+                    text = PLACEHOLDER;
+                    complete = false;
+                }
                 reflowText();
                 dateLabel.setText(DateHelper.convert(m.getDateTime()));
                 Contact from = m.getFrom();
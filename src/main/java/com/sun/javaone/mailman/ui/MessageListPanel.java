@@ -32,6 +32,7 @@
 package com.sun.javaone.mailman.ui;
 
 import com.sun.javaone.mailman.model.MailBox;
+import com.sun.javaone.mailman.model.Message;
 import com.sun.javaone.mailman.ui.image.DropShadowPanel;
 import java.awt.BorderLayout;
 import java.awt.Color;
@@ -44,12 +45,22 @@ import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.Shape;
 import java.awt.geom.RoundRectangle2D;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.AbstractList;
 import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JViewport;
+import javax.swing.ListModel;
+import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 import org.jdesktop.animation.timing.Cycle;
 import org.jdesktop.animation.timing.Envelope;
 import org.jdesktop.animation.timing.TimingController;
@@ -62,7 +73,10 @@ import org.jdesktop.swingx.border.DropShadowBorder;
  * @author sky
  */
 public class MessageListPanel extends JPanel {
-    private final JList list;
+    // Cells are stretched to the width of the list
+    private static final int MIN_CELL_WIDTH = 100;
+
+    private final JList<Object> list;
     private final MailBoxLabel mailBoxLabel;
     private final JXPanel header;
     private final JScrollPane scrollPane;
@@ -90,8 +104,12 @@ public class MessageListPanel extends JPanel {
         setLayout(new BorderLayout());
         list = new MessageList();
         list.setName("mailList");
-        list.setCellRenderer(new MessageListCellRenderer());
-        list.setPrototypeCellValue("xxx");
+        MessageListCellRenderer renderer = new MessageListCellRenderer();
+        list.setCellRenderer(renderer);
+        // Fixed cells keep the list from asking the renderer for the size
+        // of every message
+        list.setFixedCellWidth(MIN_CELL_WIDTH);
+        list.setFixedCellHeight(renderer.getRowHeight());
         JPanel scrollPanePanel = new JPanel(new BorderLayout());
         scrollPanePanel.setBorder(new DropShadowBorder(Color.BLACK,
                         0, 5, .5f, 12,
@@ -109,7 +127,7 @@ public class MessageListPanel extends JPanel {
         mailBoxLabel.setMailBox(mbox);
     }
 
-    public JList getList() {
+    public JList<Object> getList() {
         return list;
     }
 
@@ -165,7 +183,71 @@ public class MessageListPanel extends JPanel {
     }
 
 
-    private static final class MessageList extends JList {
+    private static final class MessageList extends JList<Object> {
+        // The visible rows bodies were last prefetched for
+        private int prefetchFirst = -1;
+        private int prefetchLast = -1;
+        private Object prefetchAnchor;
+        private boolean prefetchScheduled;
+        // Prefetches as the list is scrolled or resized in its viewport, or
+        // as its messages change
+        private final ChangeListener viewportListener = new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                schedulePrefetch();
+            }
+        };
+        private final ListDataListener dataListener = new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent e) {
+                schedulePrefetch();
+            }
+            @Override
+            public void intervalRemoved(ListDataEvent e) {
+                schedulePrefetch();
+            }
+            @Override
+            public void contentsChanged(ListDataEvent e) {
+                schedulePrefetch();
+            }
+        };
+
+        MessageList() {
+            getModel().addListDataListener(dataListener);
+            addPropertyChangeListener("model", new PropertyChangeListener() {
+                @Override
+                public void propertyChange(PropertyChangeEvent evt) {
+                    if (evt.getOldValue() != null) {
+                        ((ListModel<?>)evt.getOldValue())
+                                .removeListDataListener(dataListener);
+                    }
+                    if (evt.getNewValue() != null) {
+                        ((ListModel<?>)evt.getNewValue())
+                                .addListDataListener(dataListener);
+                    }
+                    schedulePrefetch();
+                }
+            });
+        }
+
+        @Override
+        public void addNotify() {
+            super.addNotify();
+            if (getParent() instanceof JViewport) {
+                ((JViewport)getParent()).addChangeListener(viewportListener);
+            }
+            schedulePrefetch();
+        }
+
+        @Override
+        public void removeNotify() {
+            if (getParent() instanceof JViewport) {
+                ((JViewport)getParent()).removeChangeListener(
+                        viewportListener);
+            }
+            super.removeNotify();
+        }
+
         @Override
         protected void paintComponent(Graphics g) {
             super.paintComponent(g);
@@ -187,6 +269,52 @@ public class MessageListPanel extends JPanel {
                 }
             }
         }
+
+        // Prefetches once the current events are handled, as the rows may
+        // not be laid out yet and a batch of changes only needs one
+        // prefetch
+        private void schedulePrefetch() {
+            if (prefetchScheduled) {
+                return;
+            }
+            prefetchScheduled = true;
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    prefetchScheduled = false;
+                    prefetchBodies();
+                }
+            });
+        }
+
+        private void prefetchBodies() {
+            int first = getFirstVisibleIndex();
+            int last = getLastVisibleIndex();
+            if (first < 0) {
+                return;
+            }
+            final ListModel<Object> model = getModel();
+            Object anchor = model.getElementAt(first);
+            if (first != prefetchFirst || last != prefetchLast ||
+                    anchor != prefetchAnchor) {
+                prefetchFirst = first;
+                prefetchLast = last;
+                prefetchAnchor = anchor;
+                BodyPrefetcher.getInstance().prefetch(this,
+                        new AbstractList<Message>() {
+                    @Override
+                    public Message get(int index) {
+                        Object value = model.getElementAt(index);
+                        return (value instanceof Message) ?
+                            (Message)value : null;
+                    }
+                    @Override
+                    public int size() {
+                        return model.getSize();
+                    }
+                }, first, last);
+            }
+        }
     }
 
     private static final class MailBoxLabel extends JLabel {
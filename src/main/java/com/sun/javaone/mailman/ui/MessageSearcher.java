@@ -0,0 +1,294 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.javaone.mailman.ui;
+
+import binding.collections.BindingCollections;
+import com.sun.javaone.mailman.Application;
+import com.sun.javaone.mailman.model.GlobalSearch;
+import com.sun.javaone.mailman.model.MailBox;
+import com.sun.javaone.mailman.model.Message;
+import com.sun.javaone.mailman.model.MessageQuery;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Searches the selected mailbox as the user types. Keystrokes are debounced
+ * and the messages are matched on a background thread against the
+ * mailbox's header columns, which hands the matches to the controller's
+ * message list a page at a time as they are found. Each new query cancels
+ * the one before it, and a query extending the previous one only looks at
+ * the messages that query matched or had not yet reached. With no mailbox
+ * selected, every mailbox of every account is searched, newest matches
+ * first. Subjects and senders are matched ignoring case.
+ */
+final class MessageSearcher {
+    private static final int DELAY = 200;
+    private static final int PAGE_SIZE = 256;
+
+    private final UIController controller;
+    private final Timer timer;
+    private final Executor executor;
+    // Bumped on each change of the query; searches of older generations stop
+    private final AtomicInteger generation;
+
+    // The query typed and the last search started, only used on the EDT
+    private String text;
+    private Search current;
+
+    MessageSearcher(UIController controller) {
+        this.controller = controller;
+        text = "";
+        generation = new AtomicInteger();
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Message searcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer = new Timer(DELAY, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                start();
+            }
+        });
+        timer.setRepeats(false);
+        controller.addPropertyChangeListener("selectedMailBox",
+                new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                generation.incrementAndGet();
+                current = null;
+                if (text.length() > 0) {
+                    timer.restart();
+                }
+            }
+        });
+    }
+
+    /**
+     * Shows the messages of the selected mailbox matching <code>text</code>,
+     * or all of them if it is empty. Must be called on the EDT.
+     */
+    void search(String text) {
+        text = text == null ? "" : text.trim();
+        if (text.equals(this.text)) {
+            return;
+        }
+        this.text = text;
+        generation.incrementAndGet();
+        if (text.length() == 0) {
+            timer.stop();
+            current = null;
+            MailBox mailBox = controller.getSelectedMailBox();
+            controller.setMessages(mailBox == null ? null :
+                mailBox.getMessages());
+        } else {
+            timer.restart();
+        }
+    }
+
+    private void start() {
+        MailBox mailBox = controller.getSelectedMailBox();
+        if (text.length() == 0) {
+            return;
+        }
+        MessageQuery query = new MessageQuery().setSenderOrSubject(text).
+                setIgnoreCase(true);
+        Search search;
+        if (mailBox == null) {
+            search = new Search(new GlobalSearch(Application.getAccounts(),
+                    query));
+        } else if (current != null && current.mailBox == mailBox &&
+                !mailBox.isLoading() && contains(text, current.text)) {
+            search = new Search(mailBox, text, query, current);
+        } else {
+            search = new Search(mailBox, text, query, null);
+        }
+        current = search;
+        controller.setMessages(search.results);
+        executor.execute(search);
+    }
+
+    private static boolean contains(String string, String text) {
+        int length = text.length();
+        for (int i = 0, last = string.length() - length; i <= last; i++) {
+            if (string.regionMatches(true, i, text, 0, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private final class Search implements Runnable {
+        // Null when every account is searched
+        private final MailBox mailBox;
+        private final String text;
+        private final MessageQuery query;
+        private final GlobalSearch globalSearch;
+        private final int searchGeneration;
+        // Shown in the table, only changed on the EDT
+        private final List<Message> results;
+
+        // Only used on the search thread
+        private Search previous;
+        private List<Message> candidates;
+        private final List<Message> matched;
+        private int scanned;
+
+        private Search(MailBox mailBox, String text, MessageQuery query,
+                Search previous) {
+            this.mailBox = mailBox;
+            this.text = text;
+            this.query = query;
+            this.previous = previous;
+            globalSearch = null;
+            searchGeneration = generation.get();
+            results = BindingCollections.observableList(
+                    new ArrayList<Message>());
+            matched = new ArrayList<Message>();
+        }
+
+        private Search(GlobalSearch globalSearch) {
+            mailBox = null;
+            text = null;
+            query = null;
+            this.globalSearch = globalSearch;
+            searchGeneration = generation.get();
+            results = BindingCollections.observableList(
+                    new ArrayList<Message>());
+            matched = null;
+        }
+
+        private boolean isCancelled() {
+            return generation.get() != searchGeneration;
+        }
+
+        // The messages this search checks: those the previous search may
+        // still match, or all the messages of the mailbox
+        private List<Message> getCandidates() {
+            if (candidates == null) {
+                candidates = (previous == null) ?
+                    mailBox.findMessages(new MessageQuery()) :
+                    previous.getRemaining();
+                previous = null;
+            }
+            return candidates;
+        }
+
+        // The messages which may still match a query extending this one
+        private List<Message> getRemaining() {
+            List<Message> candidates = getCandidates();
+            if (scanned == 0) {
+                return candidates;
+            }
+            List<Message> remaining = new ArrayList<Message>(matched.size() +
+                    candidates.size() - scanned);
+            remaining.addAll(matched);
+            remaining.addAll(candidates.subList(scanned, candidates.size()));
+            return remaining;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled()) {
+                if (globalSearch != null) {
+                    globalSearch.cancel();
+                }
+                return;
+            }
+            if (globalSearch != null) {
+                searchAll();
+                return;
+            }
+            List<Message> candidates = getCandidates();
+            MailBox.Matcher matcher = mailBox.getMatcher(query);
+            List<Message> page = new ArrayList<Message>(PAGE_SIZE);
+            for (; scanned < candidates.size(); scanned++) {
+                if (isCancelled()) {
+                    return;
+                }
+                Message message = candidates.get(scanned);
+                if (matcher.matches(message)) {
+                    matched.add(message);
+                    page.add(message);
+                    if (page.size() == PAGE_SIZE) {
+                        publish(page);
+                        page = new ArrayList<Message>(PAGE_SIZE);
+                    }
+                }
+            }
+            publish(page);
+        }
+
+        private void searchAll() {
+            try {
+                List<Message> page = globalSearch.nextPage(PAGE_SIZE);
+                while (!page.isEmpty() && !isCancelled()) {
+                    publish(page);
+                    page = globalSearch.nextPage(PAGE_SIZE);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                globalSearch.cancel();
+            }
+        }
+
+        private void publish(final List<Message> page) {
+            if (page.isEmpty()) {
+                return;
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        results.addAll(page);
+                    }
+                }
+            });
+        }
+    }
+}
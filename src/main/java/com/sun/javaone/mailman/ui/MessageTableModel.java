@@ -0,0 +1,608 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.sun.javaone.mailman.ui;
+
+import binding.collections.ObservableList;
+import binding.collections.ObservableListListener;
+import com.sun.javaone.mailman.model.Contact;
+import com.sun.javaone.mailman.model.HeaderTable;
+import com.sun.javaone.mailman.model.Message;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Table model of <code>MailTable</code>. Cells are read from the header
+ * tables of the messages, where senders are contact ids and subjects are
+ * ids in the strings of each table, so the model keeps no copy of the
+ * headers. The color each sender is highlighted with is kept by contact
+ * id, so painting finds the color of a row without looking at its
+ * contact. The model can be sorted on the subject, sender or date; the
+ * row order of each column is computed on first use, by counting the
+ * ranks of the distinct subjects and senders, and kept until rows
+ * change. Rows appended at the end, as a mailbox loads, are sorted on
+ * their own and merged into the orders kept.
+ */
+final class MessageTableModel extends AbstractTableModel
+        implements ObservableListListener {
+    static final int SUBJECT_COLUMN = 1;
+    static final int SENDER_COLUMN = 2;
+    static final int DATE_COLUMN = 3;
+    private static final String[] COLUMN_NAMES = new String[] {
+        "", "Subject", "Sender", "Date"
+    };
+    // Color of a sender not looked up yet
+    private static final int UNKNOWN_COLOR = -2;
+
+    private List<Message> source;
+
+    private int size;
+    private Message[] rows;
+    // Color indexes by contact id, -1 for none
+    private int[] senderColors;
+    private Map<String,Integer> colorMap;
+
+    // Row orders by column, null until needed
+    private final int[][] orders;
+    private int sortColumn;
+    private boolean ascending;
+
+    // The rows of the messages, null until needed
+    private Map<Message,Integer> rowMap;
+
+    MessageTableModel() {
+        rows = new Message[16];
+        senderColors = new int[0];
+        colorMap = Collections.emptyMap();
+        orders = new int[COLUMN_NAMES.length][];
+        sortColumn = -1;
+        ascending = true;
+    }
+
+    /**
+     * Shows <code>messages</code>, following its changes if it is an
+     * <code>ObservableList</code>.
+     */
+    void setMessages(List<Message> messages) {
+        if (source instanceof ObservableList) {
+            ((ObservableList)source).removeObservableListListener(this);
+        }
+        source = messages;
+        if (source instanceof ObservableList) {
+            ((ObservableList)source).addObservableListListener(this);
+        }
+        rebuild();
+    }
+
+    /**
+     * Returns the message shown at <code>row</code>.
+     */
+    Message getMessage(int row) {
+        return rows[getIndex(row)];
+    }
+
+    /**
+     * Returns the row showing <code>message</code>, or -1.
+     */
+    int getRow(Message message) {
+        if (rowMap == null) {
+            rowMap = new IdentityHashMap<Message,Integer>(size);
+            for (int row = 0; row < size; row++) {
+                rowMap.put(getMessage(row), row);
+            }
+        }
+        Integer row = rowMap.get(message);
+        return (row == null) ? -1 : row;
+    }
+
+    /**
+     * Returns the messages in the order of the rows.
+     */
+    List<Message> getMessages() {
+        return new AbstractList<Message>() {
+            @Override
+            public Message get(int index) {
+                return getMessage(index);
+            }
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Sets the color indexes of the senders, by lower case address, and
+     * updates the colors of the rows.
+     */
+    void setColors(Map<String,Integer> colorMap) {
+        this.colorMap = colorMap;
+        Arrays.fill(senderColors, UNKNOWN_COLOR);
+    }
+
+    /**
+     * Returns the color index of <code>row</code>, or -1 if it is not
+     * highlighted.
+     */
+    int getColorIndex(int row) {
+        Message message = getMessage(row);
+        int senderId = message.getHeaderTable().getSenderId(
+                message.getRow());
+        if (senderId < 0) {
+            return -1;
+        }
+        if (senderId >= senderColors.length) {
+            int length = senderColors.length;
+            senderColors = Arrays.copyOf(senderColors,
+                    Math.max(length * 2, senderId + 1));
+            Arrays.fill(senderColors, length, senderColors.length,
+                    UNKNOWN_COLOR);
+        }
+        if (senderColors[senderId] == UNKNOWN_COLOR) {
+            senderColors[senderId] = getColor(Contact.getContact(senderId));
+        }
+        return senderColors[senderId];
+    }
+
+    private int getColor(Contact sender) {
+        String address = sender.getAddress();
+        if (address == null) {
+            return -1;
+        }
+        Integer color = colorMap.get(address.toLowerCase());
+        return (color == null) ? -1 : color;
+    }
+
+    /**
+     * Sorts the rows on <code>column</code>, or reverses them if they are
+     * already.
+     */
+    void sort(int column) {
+        if (column != SUBJECT_COLUMN && column != SENDER_COLUMN &&
+                column != DATE_COLUMN) {
+            return;
+        }
+        if (column == sortColumn) {
+            ascending = !ascending;
+        } else {
+            sortColumn = column;
+            ascending = true;
+        }
+        rowMap = null;
+        fireTableDataChanged();
+    }
+
+    int getSortColumn() {
+        return sortColumn;
+    }
+
+    boolean isAscending() {
+        return ascending;
+    }
+
+    @Override
+    public int getRowCount() {
+        return size;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Message message = getMessage(row);
+        switch (column) {
+            case SUBJECT_COLUMN:
+                return message.getSubject();
+            case SENDER_COLUMN:
+                Contact from = message.getFrom();
+                return (from == null) ? null : from.getDisplayName();
+            case DATE_COLUMN:
+                // Painted from getDate, without boxing the date
+                return message;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the date of the message shown at <code>row</code>.
+     */
+    long getDate(int row) {
+        Message message = getMessage(row);
+        return message.getHeaderTable().getDate(message.getRow());
+    }
+
+    private int getIndex(int row) {
+        if (sortColumn < 0) {
+            return row;
+        }
+        int[] order = getOrder(sortColumn);
+        return ascending ? order[row] : order[size - 1 - row];
+    }
+
+    private int[] getOrder(int column) {
+        int[] order = orders[column];
+        if (order == null) {
+            switch (column) {
+                case SUBJECT_COLUMN:
+                    order = sortBySubject();
+                    break;
+                case SENDER_COLUMN:
+                    order = sortBySender();
+                    break;
+                default:
+                    order = sortByDate();
+                    break;
+            }
+            orders[column] = order;
+        }
+        return order;
+    }
+
+    // Counting sort of the rows on the ranks of their subjects, which are
+    // read once per distinct subject of each header table
+    private int[] sortBySubject() {
+        Map<HeaderTable,BitSet> ids = new IdentityHashMap<HeaderTable,BitSet>();
+        for (int i = 0; i < size; i++) {
+            HeaderTable table = rows[i].getHeaderTable();
+            int id = table.getSubjectId(rows[i].getRow());
+            if (id >= 0) {
+                BitSet tableIds = ids.get(table);
+                if (tableIds == null) {
+                    tableIds = new BitSet();
+                    ids.put(table, tableIds);
+                }
+                tableIds.set(id);
+            }
+        }
+        final List<String> subjects = new ArrayList<String>();
+        Map<HeaderTable,int[]> keys = new IdentityHashMap<HeaderTable,int[]>();
+        for (Map.Entry<HeaderTable,BitSet> entry : ids.entrySet()) {
+            HeaderTable table = entry.getKey();
+            BitSet tableIds = entry.getValue();
+            int[] tableKeys = new int[tableIds.length()];
+            for (int id = tableIds.nextSetBit(0); id >= 0;
+                    id = tableIds.nextSetBit(id + 1)) {
+                tableKeys[id] = subjects.size();
+                subjects.add(table.getString(id));
+            }
+            keys.put(table, tableKeys);
+        }
+        int[] rowKeys = new int[size];
+        for (int i = 0; i < size; i++) {
+            HeaderTable table = rows[i].getHeaderTable();
+            int id = table.getSubjectId(rows[i].getRow());
+            rowKeys[i] = (id < 0) ? -1 : keys.get(table)[id];
+        }
+        return sortByRank(rowKeys, getRanks(subjects,
+                new Comparator<String>() {
+            @Override
+            public int compare(String s1, String s2) {
+                return compareSubjects(s1, s2);
+            }
+        }));
+    }
+
+    // Subjects ignoring case, then with case, so that the rows of a merge
+    // fall where a sort of all rows puts them
+    private static int compareSubjects(String s1, String s2) {
+        int result = String.CASE_INSENSITIVE_ORDER.compare(s1, s2);
+        return (result != 0) ? result : s1.compareTo(s2);
+    }
+
+    // Counting sort of the rows on the ranks of their senders
+    private int[] sortBySender() {
+        int[] rowKeys = new int[size];
+        BitSet ids = new BitSet();
+        for (int i = 0; i < size; i++) {
+            rowKeys[i] = rows[i].getHeaderTable().getSenderId(
+                    rows[i].getRow());
+            if (rowKeys[i] >= 0) {
+                ids.set(rowKeys[i]);
+            }
+        }
+        final List<Contact> senders = new ArrayList<Contact>();
+        int[] keys = new int[ids.length()];
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            keys[id] = senders.size();
+            senders.add(Contact.getContact(id));
+        }
+        for (int i = 0; i < size; i++) {
+            if (rowKeys[i] >= 0) {
+                rowKeys[i] = keys[rowKeys[i]];
+            }
+        }
+        return sortByRank(rowKeys, getRanks(senders,
+                new Comparator<Contact>() {
+            @Override
+            public int compare(Contact c1, Contact c2) {
+                return compareSenders(c1, c2);
+            }
+        }));
+    }
+
+    // Senders by display name ignoring case, then with case, then by id
+    private static int compareSenders(Contact c1, Contact c2) {
+        String name1 = c1.getDisplayName();
+        String name2 = c2.getDisplayName();
+        int result;
+        if (name1 == null || name2 == null) {
+            result = (name1 == null) ? ((name2 == null) ? 0 : -1) : 1;
+        } else {
+            result = compareSubjects(name1, name2);
+        }
+        return (result != 0) ? result : c1.getId() - c2.getId();
+    }
+
+    // Ranks of the entries of a dictionary in the order of comparator
+    private static <T> int[] getRanks(final List<T> dictionary,
+            final Comparator<? super T> comparator) {
+        Integer[] ids = new Integer[dictionary.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        Arrays.sort(ids, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer id1, Integer id2) {
+                return comparator.compare(dictionary.get(id1),
+                        dictionary.get(id2));
+            }
+        });
+        int[] ranks = new int[ids.length];
+        for (int rank = 0; rank < ids.length; rank++) {
+            ranks[ids[rank]] = rank;
+        }
+        return ranks;
+    }
+
+    // Counting sort of the rows on the ranks of their ids, -1 first
+    private int[] sortByRank(int[] ids, int[] ranks) {
+        int[] starts = new int[ranks.length + 2];
+        for (int i = 0; i < size; i++) {
+            int id = ids[i];
+            starts[((id < 0) ? 0 : ranks[id] + 1) + 1]++;
+        }
+        for (int i = 1; i < starts.length; i++) {
+            starts[i] += starts[i - 1];
+        }
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            int id = ids[i];
+            order[starts[(id < 0) ? 0 : ranks[id] + 1]++] = i;
+        }
+        return order;
+    }
+
+    // Stable merge sort of the rows on their dates
+    private int[] sortByDate() {
+        long[] dates = new long[size];
+        int[] order = new int[size];
+        int[] buffer = new int[size];
+        for (int i = 0; i < size; i++) {
+            dates[i] = rows[i].getHeaderTable().getDate(rows[i].getRow());
+            order[i] = i;
+        }
+        for (int width = 1; width < size; width *= 2) {
+            for (int start = 0; start < size; start += 2 * width) {
+                int middle = Math.min(start + width, size);
+                int end = Math.min(start + 2 * width, size);
+                int left = start;
+                int right = middle;
+                for (int i = start; i < end; i++) {
+                    if (left < middle && (right >= end ||
+                            dates[order[left]] <= dates[order[right]])) {
+                        buffer[i] = order[left++];
+                    } else {
+                        buffer[i] = order[right++];
+                    }
+                }
+            }
+            int[] sorted = buffer;
+            buffer = order;
+            order = sorted;
+        }
+        return order;
+    }
+
+    // Merges the rows from index from on into the orders computed so far.
+    // The new rows are sorted, and each is put in after the kept rows that
+    // come before it, which a binary search finds.
+    private void mergeOrders(int from) {
+        for (final int column : new int[] {
+                SUBJECT_COLUMN, SENDER_COLUMN, DATE_COLUMN }) {
+            int[] order = orders[column];
+            if (order == null) {
+                continue;
+            }
+            Integer[] added = new Integer[size - from];
+            for (int i = 0; i < added.length; i++) {
+                added[i] = from + i;
+            }
+            Arrays.sort(added, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i1, Integer i2) {
+                    return compareRows(column, i1, i2);
+                }
+            });
+            int[] merged = new int[size];
+            int kept = 0;
+            int length = 0;
+            for (int index : added) {
+                int low = kept;
+                int high = order.length;
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    if (compareRows(column, order[middle], index) < 0) {
+                        low = middle + 1;
+                    } else {
+                        high = middle;
+                    }
+                }
+                System.arraycopy(order, kept, merged, length, low - kept);
+                length += low - kept;
+                kept = low;
+                merged[length++] = index;
+            }
+            System.arraycopy(order, kept, merged, length,
+                    order.length - kept);
+            orders[column] = merged;
+        }
+    }
+
+    // Compares the rows at two indexes as the sort of column orders them,
+    // and by index where their values are the same
+    private int compareRows(int column, int index1, int index2) {
+        Message message1 = rows[index1];
+        Message message2 = rows[index2];
+        HeaderTable table1 = message1.getHeaderTable();
+        HeaderTable table2 = message2.getHeaderTable();
+        int result;
+        switch (column) {
+            case SUBJECT_COLUMN:
+                String subject1 = message1.getSubject();
+                String subject2 = message2.getSubject();
+                if (subject1 == null || subject2 == null) {
+                    result = (subject1 == null) ?
+                        ((subject2 == null) ? 0 : -1) : 1;
+                } else {
+                    result = compareSubjects(subject1, subject2);
+                }
+                break;
+            case SENDER_COLUMN:
+                int id1 = table1.getSenderId(message1.getRow());
+                int id2 = table2.getSenderId(message2.getRow());
+                if (id1 < 0 || id2 < 0) {
+                    result = (id1 < 0) ? ((id2 < 0) ? 0 : -1) : 1;
+                } else {
+                    result = compareSenders(Contact.getContact(id1),
+                            Contact.getContact(id2));
+                }
+                break;
+            default:
+                long date1 = table1.getDate(message1.getRow());
+                long date2 = table2.getDate(message2.getRow());
+                result = (date1 < date2) ? -1 : ((date1 == date2) ? 0 : 1);
+                break;
+        }
+        return (result != 0) ? result : index1 - index2;
+    }
+
+    private void rebuild() {
+        Arrays.fill(rows, 0, size, null);
+        size = 0;
+        if (source != null) {
+            append(source, 0, source.size());
+        }
+        changed();
+        fireTableDataChanged();
+    }
+
+    private void append(List<Message> messages, int from, int to) {
+        int count = size + to - from;
+        if (count > rows.length) {
+            rows = Arrays.copyOf(rows, Math.max(count, rows.length * 2));
+        }
+        for (int i = from; i < to; i++) {
+            rows[size++] = messages.get(i);
+        }
+    }
+
+    private void changed() {
+        Arrays.fill(orders, null);
+        rowMap = null;
+    }
+
+    // The listener interface of the binding library takes raw lists; the
+    // list is always the source
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void listElementsAdded(ObservableList list, int index, int length) {
+        if (index != size) {
+            rebuild();
+            return;
+        }
+        append(source, index, index + length);
+        mergeOrders(index);
+        rowMap = null;
+        if (sortColumn < 0) {
+            fireTableRowsInserted(index, index + length - 1);
+        } else {
+            fireTableDataChanged();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void listElementsRemoved(ObservableList list, int index,
+            List oldElements) {
+        rebuild();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void listElementReplaced(ObservableList list, int index,
+            Object oldElement) {
+        update(index, source.get(index));
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void listElementPropertyChanged(ObservableList list, int index) {
+        update(index, source.get(index));
+    }
+
+    private void update(int index, Message message) {
+        rows[index] = message;
+        changed();
+        if (sortColumn < 0) {
+            fireTableRowsUpdated(index, index);
+        } else {
+            fireTableDataChanged();
+        }
+    }
+}
@@ -36,6 +36,7 @@ import com.sun.javaone.mailman.model.MailBox;
 import com.sun.javaone.mailman.model.Message;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.util.List;
 
 /**
  *
@@ -46,6 +47,7 @@ public final class UIController {
     private Account account;
     private MailBox selectedMailBox;
     private Message selectedMessage;
+    private List<Message> messages;
 
     UIController() {
         changeSupport = new PropertyChangeSupport(this);
@@ -76,6 +78,7 @@ public final class UIController {
     public void setSelectedMailBox(MailBox mailBox) {
         MailBox lastMailBox = this.selectedMailBox;
         this.selectedMailBox = mailBox;
+        setMessages(mailBox == null ? null : mailBox.getMessages());
         firePropertyChange("selectedMailBox", lastMailBox, mailBox);
         setSelectedMessage(null);
     }
@@ -84,6 +87,20 @@ public final class UIController {
         return selectedMailBox;
     }
 
+    /**
+     * Sets the messages shown, those of the selected mailbox or the results
+     * of a search.
+     */
+    public void setMessages(List<Message> messages) {
+        List<Message> lastMessages = this.messages;
+        this.messages = messages;
+        firePropertyChange("messages", lastMessages, messages);
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
     public void setSelectedMessage(Message message) {
         Message lastMessage = this.selectedMessage;
         this.selectedMessage = message;
@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.sun.javaone.mailman.model.Contact;
+
+/**
+ * Checks that contacts interned by several threads at once get one
+ * contact, and one id, per address. Threads spell the addresses with
+ * other cases and spaces, and half of them give names where the others
+ * only give addresses. There are more addresses than the id table
+ * first holds.
+ */
+public class ContactRegistryTest {
+    private static final int THREADS = 8;
+    // Enough for the table of ids to grow while the threads run
+    private static final int ADDRESSES = 200000;
+
+    private ContactRegistryTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Contact[]>> results = new ArrayList<Future<Contact[]>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            results.add(executor.submit(new Callable<Contact[]>() {
+                public Contact[] call() throws Exception {
+                    start.await();
+                    Contact[] contacts = new Contact[ADDRESSES];
+                    for (int i = 0; i < ADDRESSES; i++) {
+                        // Threads go through the addresses in other orders
+                        int a = (thread % 2 == 0) ?
+                            (i + thread * ADDRESSES / THREADS) % ADDRESSES :
+                            ADDRESSES - 1 - i;
+                        contacts[a] = getContact(thread, a);
+                    }
+                    return contacts;
+                }
+            }));
+        }
+        start.countDown();
+        List<Contact[]> contacts = new ArrayList<Contact[]>();
+        for (Future<Contact[]> result : results) {
+            contacts.add(result.get());
+        }
+        executor.shutdown();
+
+        int shared = 0;
+        int stable = 0;
+        int named = 0;
+        Set<Integer> ids = new HashSet<Integer>();
+        for (int a = 0; a < ADDRESSES; a++) {
+            Contact contact = contacts.get(0)[a];
+            boolean same = true;
+            for (Contact[] other : contacts) {
+                same &= other[a] == contact;
+            }
+            if (same) {
+                shared++;
+            }
+            if (Contact.getContact(contact.getId()) == contact &&
+                    getContact(0, a).getId() == contact.getId()) {
+                stable++;
+            }
+            if (("Name " + a).equals(contact.getDisplayName())) {
+                named++;
+            }
+            ids.add(contact.getId());
+        }
+        MailBoxFile.checkEquals(ADDRESSES, shared,
+                "one contact per address");
+        MailBoxFile.checkEquals(ADDRESSES, stable,
+                "ids found and kept");
+        MailBoxFile.checkEquals(ADDRESSES, ids.size(), "one id per address");
+        MailBoxFile.checkEquals(ADDRESSES, named,
+                "names kept over bare addresses");
+        MailBoxFile.checkEquals(null, Contact.getContact(-1),
+                "no contact for a negative id");
+        MailBoxFile.exit();
+    }
+
+    private static Contact getContact(int thread, int a) {
+        String address = "contact" + a + "@registry.test";
+        if (thread % 2 == 0) {
+            return Contact.getContact(null, null, address, address);
+        }
+        return Contact.getContact("Name", String.valueOf(a), "Name " + a,
+                " " + address.toUpperCase(Locale.ENGLISH) + " ");
+    }
+}
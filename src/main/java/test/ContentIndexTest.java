@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package test;
+
+import java.io.File;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.sun.javaone.mailman.model.MailBox;
+import com.sun.javaone.mailman.model.Message;
+
+/**
+ * Checks the content searches of a mailbox: substrings, word prefixes and
+ * phrases. Each search is run while the content index is being built,
+ * then once it is written, with the index built by the mailbox and with
+ * the index read back from its file. All of them must find the same
+ * messages, including those with text left out of the index.
+ */
+public class ContentIndexTest {
+    private static final String[] BODIES = {
+        "Swing painting uses double buffering.\nSee RepaintManager for details.",
+        "The repaint happens on the event dispatch thread.",
+        "Buffered images are painted by the renderer.",
+        "Nothing relevant here, only numbers 12345.",
+        "A long word: supercalifragilisticexpialidociousandmore.",
+        "Painting order: double-buffered components first.",
+        "Generated name:\nThisIsALongJavaIdentifierThatLooksLikeBase64Text\n",
+        "This is a multipart message.\n" +
+        "--XYZBOUNDARY\n" +
+        "Content-Type: text/plain\n\n" +
+        "See the attached data.\n" +
+        "--XYZBOUNDARY\n" +
+        "Content-Type: application/json\n\n" +
+        "{\"needle\": 1}\n" +
+        "--XYZBOUNDARY--"
+    };
+
+    private ContentIndexTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File directory = MailBoxFile.createDirectory("content");
+        String[] messages = new String[BODIES.length];
+        for (int i = 0; i < BODIES.length; i++) {
+            messages[i] = "From: test@dev.null\nSubject: " + i + "\n\n" +
+                    BODIES[i];
+        }
+        MailBox mailBox = MailBoxFile.create(directory, "Content", messages);
+        checkSearches("indexing", mailBox);
+
+        File indexFile = new File(directory, "Content.mbox.fts");
+        for (int i = 0; i < 100 && !indexFile.exists(); i++) {
+            Thread.sleep(100);
+        }
+        MailBoxFile.check(indexFile.exists(), "content index written");
+        // The index is used once the mailbox is done writing it
+        Thread.sleep(500);
+        checkSearches("built index", mailBox);
+
+        mailBox = new MailBox(MailBox.Type.OTHER, "Content", null,
+                new File(directory, "Content.mbox"));
+        mailBox.findByContent("");
+        Thread.sleep(500);
+        checkSearches("read index", mailBox);
+        MailBoxFile.exit();
+    }
+
+    private static void checkSearches(String mode, MailBox mailBox) {
+        // Substrings are case sensitive, and may lie within words
+        checkContent(mode, mailBox, "paint", "0", "1", "2");
+        checkContent(mode, mailBox, "Paint", "5");
+        checkContent(mode, mailBox, "double buffering", "0");
+        checkContent(mode, mailBox, "double-buffered", "5");
+        checkContent(mode, mailBox, "12345", "3");
+        checkContent(mode, mailBox, "alidocious", "4");
+        checkContent(mode, mailBox, "the renderer.", "2");
+        checkContent(mode, mailBox, "xyz");
+        // Lines and parts left out of the index are still searched
+        checkContent(mode, mailBox, "JavaIdentifier", "6");
+        checkContent(mode, mailBox, "needle", "7");
+        checkContent(mode, mailBox, "XYZBOUNDARY", "7");
+        checkContent(mode, mailBox, "attached data", "7");
+
+        // Prefixes start words, and ignore case
+        checkPrefix(mode, mailBox, "paint", "0", "2", "5");
+        checkPrefix(mode, mailBox, "REPAINT", "0", "1");
+        checkPrefix(mode, mailBox, "buffer", "0", "2", "5");
+        checkPrefix(mode, mailBox, "supercalifragilisticexpialidociousand",
+                "4");
+        checkPrefix(mode, mailBox, "supercalifragilisticexpialidociousor");
+        checkPrefix(mode, mailBox, "aint");
+        checkPrefix(mode, mailBox, "thisisalong", "6");
+        checkPrefix(mode, mailBox, "NEED", "7");
+
+        // Phrases are whole words one after the other, ignoring case and
+        // what lies between them
+        checkPhrase(mode, mailBox, "double buffering", "0");
+        checkPhrase(mode, mailBox, "Double Buffered", "5");
+        checkPhrase(mode, mailBox, "painted by", "2");
+        checkPhrase(mode, mailBox, "buffering double");
+        checkPhrase(mode, mailBox, "paint");
+        checkPhrase(mode, mailBox, "generated name", "6");
+        checkPhrase(mode, mailBox, "needle 1", "7");
+    }
+
+    private static void checkContent(String mode, MailBox mailBox,
+            String content, String... expected) {
+        check(mode + " content \"" + content + "\"",
+                mailBox.findByContent(content), expected);
+    }
+
+    private static void checkPrefix(String mode, MailBox mailBox,
+            String prefix, String... expected) {
+        check(mode + " prefix \"" + prefix + "\"",
+                mailBox.findByPrefix(prefix), expected);
+    }
+
+    private static void checkPhrase(String mode, MailBox mailBox,
+            String phrase, String... expected) {
+        check(mode + " phrase \"" + phrase + "\"",
+                mailBox.findByPhrase(phrase), expected);
+    }
+
+    private static void check(String description, Message[] found,
+            String[] expected) {
+        Set<String> subjects = new TreeSet<String>();
+        for (Message message : found) {
+            subjects.add(message.getSubject());
+        }
+        Set<String> expectedSubjects = new TreeSet<String>();
+        for (String subject : expected) {
+            expectedSubjects.add(subject);
+        }
+        MailBoxFile.checkEquals(expectedSubjects, subjects, description);
+    }
+}
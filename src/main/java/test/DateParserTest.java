@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package test;
+
+import java.io.File;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import com.sun.javaone.mailman.model.MailBox;
+import com.sun.javaone.mailman.model.Message;
+
+/**
+ * Checks the dates read from the <code>Date</code> fields of a mailbox:
+ * RFC 2822 dates, the RFC 822 and ctime forms of older mail, two and three
+ * digit years, numeric and named zones, days past the end of a month,
+ * and dates that cannot be read, which leave the message undated.
+ */
+public class DateParserTest {
+    private static final String[] DATES = {
+        "Thu, 10 Aug 2006 16:56:53 -0700",
+        "10 Aug 2006 16:56 +0100",
+        "Thursday, 10 August 2006 16:56:53 +05:30 (IST)",
+        "Thu 10 Aug 2006 16:56:53 GMT",
+        "10-Aug-2006 16:56:53 -0700",
+        "Thu, 10 Aug 06 16:56:53 EST",
+        "Tue, 10 Aug 99 16:56:53 pdt",
+        "Thu, 10 Aug 106 16:56:53 +0000",
+        "Thu Aug 10 16:56:53 2006",
+        "Thu Aug 10 16:56:53 PST 2006",
+        "Thu, 10 Aug 2006 16:56:53 XYZ",
+        "Sun, 29 Feb 2004 23:59:59 -0000",
+        "Thu, 10 Aug 2006 10:00:00 +0000",
+        "Thu, 10 Aug 2006 11:00:00 +0000",
+        "Thu, 10 Aug 2006 10:00:00 +0200",
+        "Thu, 10 Aug 2006 10:00:00 +0000",
+        "Thu, 11 Aug 2006 10:00:00 +0000",
+        "0 Feb 2006 10:00:00 +0000",
+        "32 Jan 2006 10:00:00 +0000",
+        "not a date",
+        "Thu, 10 Aug",
+        "",
+        null
+    };
+
+    private DateParserTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        long[] expected = {
+            getTime(2006, 8, 10, 16, 56, 53, -7 * 60),
+            getTime(2006, 8, 10, 16, 56, 0, 60),
+            getTime(2006, 8, 10, 16, 56, 53, 5 * 60 + 30),
+            getTime(2006, 8, 10, 16, 56, 53, 0),
+            getTime(2006, 8, 10, 16, 56, 53, -7 * 60),
+            getTime(2006, 8, 10, 16, 56, 53, -5 * 60),
+            getTime(1999, 8, 10, 16, 56, 53, -7 * 60),
+            getTime(2006, 8, 10, 16, 56, 53, 0),
+            getTime(2006, 8, 10, 16, 56, 53, 0),
+            getTime(2006, 8, 10, 16, 56, 53, -8 * 60),
+            getTime(2006, 8, 10, 16, 56, 53, 0),
+            getTime(2004, 2, 29, 23, 59, 59, 0),
+            getTime(2006, 8, 10, 10, 0, 0, 0),
+            getTime(2006, 8, 10, 11, 0, 0, 0),
+            getTime(2006, 8, 10, 10, 0, 0, 2 * 60),
+            getTime(2006, 8, 10, 10, 0, 0, 0),
+            getTime(2006, 8, 11, 10, 0, 0, 0),
+            // Days out of range carry over into the next or last month
+            getTime(2006, 1, 31, 10, 0, 0, 0),
+            getTime(2006, 2, 1, 10, 0, 0, 0),
+            // Unreadable or missing dates leave the message undated
+            0,
+            0,
+            0,
+            0
+        };
+
+        String[] messages = new String[DATES.length];
+        for (int i = 0; i < DATES.length; i++) {
+            messages[i] = ((DATES[i] == null) ? "" : "Date: " + DATES[i] +
+                    "\n") + "Subject: " + i + "\n\n" + i;
+        }
+        File directory = MailBoxFile.createDirectory("dates");
+        MailBox mailBox = MailBoxFile.create(directory, "Dates", messages);
+        List<Message> loaded = mailBox.getMessages();
+        MailBoxFile.checkEquals(DATES.length, loaded.size(), "count");
+        for (int i = 0; i < DATES.length && i < loaded.size(); i++) {
+            MailBoxFile.checkEquals(expected[i], loaded.get(i).getDateTime(),
+                    (DATES[i] == null) ? "no date field" :
+                        "\"" + DATES[i] + "\"");
+        }
+        MailBoxFile.exit();
+    }
+
+    // The time of a date given in a zone offset by minutes from UTC
+    private static long getTime(int year, int month, int day, int hours,
+            int minutes, int seconds, int offset) {
+        Calendar calendar = new GregorianCalendar(
+                TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month - 1, day, hours, minutes, seconds);
+        return calendar.getTimeInMillis() - offset * 60 * 1000L;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.javaone.mailman.model.Contact;
+import com.sun.javaone.mailman.model.MailBox;
+import com.sun.javaone.mailman.model.Message;
+
+/**
+ * Checks how header fields are decoded from the bytes of a mailbox:
+ * folded lines, ISO-8859-1 characters, address lists with quoted names
+ * and angle brackets, and contacts shared by the messages naming the same
+ * address. The mailbox is checked when parsed and when read back from
+ * its header index.
+ */
+public class HeaderDecoderTest {
+    private static final String[] MESSAGES = {
+        "From: \"Violet, Scott\" <violet@quoted.test>\n" +
+        "To: \"Hickey, Shannon\" <hickey@quoted.test>, " +
+                "Brent Christian <brent@plain.test>,\n" +
+        "\tbare@plain.test ,  , \n" +
+        "Cc: \"Say \\\"hi\\\", then\" <escaped@quoted.test>,next@plain.test\n" +
+        "Subject: A folded\n" +
+        "   subject line\n\nFirst",
+
+        "From: Jos\u00e9 P\u00e9rez <jose@latin.test>\n" +
+        "To: Brent Christian <brent@plain.test>\n" +
+        "Cc: Odd <odd,name@angle.test>\n" +
+        "Subject: Caf\u00e9 cr\u00e8me\n\nSecond",
+
+        "From: bare@plain.test\n" +
+        "To: \n\nThird"
+    };
+
+    private HeaderDecoderTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File directory = MailBoxFile.createDirectory("decoder");
+        MailBox mailBox = MailBoxFile.create(directory, "Decoder", MESSAGES);
+        checkMessages("parsed", mailBox.getMessages());
+
+        mailBox = new MailBox(MailBox.Type.OTHER, "Decoder", null,
+                new File(directory, "Decoder.mbox"));
+        checkMessages("indexed", mailBox.getMessages());
+        MailBoxFile.exit();
+    }
+
+    private static void checkMessages(String state, List<Message> messages) {
+        MailBoxFile.checkEquals(3, messages.size(), state + " count");
+
+        Message first = messages.get(0);
+        MailBoxFile.checkEquals("violet@quoted.test",
+                first.getFrom().getAddress(), state + " quoted sender");
+        MailBoxFile.checkEquals(Arrays.asList("hickey@quoted.test",
+                "brent@plain.test", "bare@plain.test"),
+                getAddresses(first.getTo()),
+                state + " folded list with a quoted comma and empty entries");
+        MailBoxFile.checkEquals(Arrays.asList("escaped@quoted.test",
+                "next@plain.test"), getAddresses(first.getCc()),
+                state + " escaped quotes");
+        MailBoxFile.checkEquals("A folded subject line", first.getSubject(),
+                state + " folded subject");
+
+        Message second = messages.get(1);
+        Contact jose = second.getFrom();
+        MailBoxFile.checkEquals("Jos\u00e9 P\u00e9rez", jose.getDisplayName(),
+                state + " ISO-8859-1 display name");
+        MailBoxFile.checkEquals("Jos\u00e9", jose.getFirstName(),
+                state + " first name");
+        MailBoxFile.checkEquals("P\u00e9rez", jose.getLastName(),
+                state + " last name");
+        MailBoxFile.checkEquals("jose@latin.test", jose.getAddress(),
+                state + " address");
+        MailBoxFile.checkEquals("Caf\u00e9 cr\u00e8me", second.getSubject(),
+                state + " ISO-8859-1 subject");
+        MailBoxFile.checkEquals(Arrays.asList("odd,name@angle.test"),
+                getAddresses(second.getCc()),
+                state + " comma within angle brackets");
+        MailBoxFile.check(second.getTo()[0] == first.getTo()[1],
+                state + " same address, same contact");
+        MailBoxFile.checkEquals("Brent Christian",
+                second.getTo()[0].getDisplayName(), state + " display name");
+
+        Message third = messages.get(2);
+        MailBoxFile.check(third.getFrom() == first.getTo()[2],
+                state + " bare address shared");
+        MailBoxFile.checkEquals("bare@plain.test",
+                third.getFrom().getDisplayName(),
+                state + " bare address as display name");
+        Contact[] to = third.getTo();
+        MailBoxFile.check(to == null || to.length == 0,
+                state + " empty list");
+        MailBoxFile.checkEquals(null, third.getSubject(),
+                state + " no subject");
+    }
+
+    private static List<String> getAddresses(Contact[] contacts) {
+        List<String> addresses = new ArrayList<String>();
+        if (contacts != null) {
+            for (Contact contact : contacts) {
+                addresses.add(contact.getAddress());
+            }
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.javaone.mailman.model.Contact;
+import com.sun.javaone.mailman.model.MailBox;
+import com.sun.javaone.mailman.model.Message;
+import com.sun.javaone.mailman.model.MessageQuery;
+
+/**
+ * Checks the header searches of a mailbox against a scan of its messages,
+ * for single conditions and combined ones, before and after messages from
+ * another mailbox are added and messages are removed.
+ */
+public class HeaderQueryTest {
+    private static final String[] INBOX = {
+        "Date: Thu, 10 Aug 2006 16:56:53 -0700\n" +
+        "From: Scott Violet <scott_violet@dev.null>\n" +
+        "To: Brent Christian <brent_christian@dev.null>, shannon_hickey@dev.null\n" +
+        "Cc: Chet Haase <chet_haase@dev.null>\n" +
+        "Subject: [6459213] dolphin request for review\n\nFirst",
+
+        "Date: Fri, 11 Aug 2006 09:00:00 -0700\n" +
+        "From: Chet Haase <chet_haase@dev.null>\n" +
+        "To: Scott Violet <scott_violet@dev.null>\n" +
+        "Subject: Re: [6459213] dolphin request for review\n\nSecond",
+
+        "Date: Sat, 12 Aug 2006 12:30:00 +0200\n" +
+        "From: romain_guy@dev.null\n" +
+        "To: Chet Haase <chet_haase@dev.null>, Scott Violet <scott_violet@dev.null>\n" +
+        "Subject: Swing painting\n\nThird",
+
+        "Date: Sun, 13 Aug 2006 08:00:00 GMT\n" +
+        "From: Brent Christian <brent_christian@dev.null>\n" +
+        "To: romain_guy@dev.null\n" +
+        "Subject: Ok\n\nFourth",
+
+        "From: Shannon Hickey <shannon_hickey@dev.null>\n" +
+        "To: Brent Christian <brent_christian@dev.null>\n" +
+        "Subject: No date here\n\nFifth"
+    };
+
+    private static final String[] OTHER = {
+        "Date: Mon, 14 Aug 2006 10:00:00 -0700\n" +
+        "From: Jeff Dinkins <jeff_dinkins@dev.null>\n" +
+        "To: Chet Haase <chet_haase@dev.null>\n" +
+        "Subject: SWING demos\n\nSixth"
+    };
+
+    private HeaderQueryTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File directory = MailBoxFile.createDirectory("headers");
+        MailBox inbox = MailBoxFile.create(directory, "Inbox", INBOX);
+        MailBox other = MailBoxFile.create(directory, "Other", OTHER);
+        long aug12 = inbox.getMessages().get(2).getDateTime();
+
+        MailBoxFile.checkEquals(Arrays.asList("0"),
+                getBodies(inbox.findBySender("Violet")), "sender");
+        MailBoxFile.checkEquals(Arrays.asList("2"),
+                getBodies(inbox.findBySender("romain_guy")),
+                "sender by address");
+        MailBoxFile.checkEquals(Arrays.asList("1", "2"),
+                getBodies(inbox.findByRecipient("Scott")),
+                "recipient listed once");
+        MailBoxFile.checkEquals(Arrays.asList("2"),
+                getBodies(inbox.findByRecipient("Chet")),
+                "recipient ignores Cc");
+        MailBoxFile.checkEquals(Arrays.asList("3"),
+                getBodies(inbox.findBySubject("Ok")), "short subject");
+        MailBoxFile.checkEquals(Arrays.asList("1", "2", "3"),
+                getBodies(inbox.find(new MessageQuery()
+                        .setDateRange(inbox.getMessages().get(1).getDateTime(),
+                                Long.MAX_VALUE))),
+                "date range leaves out undated messages");
+
+        List<MessageQuery> queries = new ArrayList<MessageQuery>();
+        String[] texts = { "Violet", "violet", "Chet", "dev.null", "dolphin",
+                "DOLPHIN", "Re:", "Ok", "o", "Swing", "swing", "x" };
+        for (String text : texts) {
+            for (boolean ignoreCase : new boolean[] { false, true }) {
+                queries.add(new MessageQuery().setSender(text)
+                        .setIgnoreCase(ignoreCase));
+                queries.add(new MessageQuery().setRecipient(text)
+                        .setIgnoreCase(ignoreCase));
+                queries.add(new MessageQuery().setSubject(text)
+                        .setIgnoreCase(ignoreCase));
+                queries.add(new MessageQuery().setSenderOrSubject(text)
+                        .setIgnoreCase(ignoreCase));
+            }
+        }
+        queries.add(new MessageQuery().setSender("Haase")
+                .setSubject("dolphin"));
+        queries.add(new MessageQuery().setRecipient("Violet")
+                .setSubject("Re:"));
+        queries.add(new MessageQuery().setSender("dev.null")
+                .setDateRange(Long.MIN_VALUE, aug12));
+        queries.add(new MessageQuery().setSenderOrSubject("chet")
+                .setIgnoreCase(true).setDateRange(aug12, Long.MAX_VALUE));
+        queries.add(new MessageQuery().setDateRange(aug12, aug12 + 1));
+
+        checkQueries("loaded", inbox, queries);
+
+        Message added = other.getMessages().get(0);
+        inbox.addMessage(added);
+        checkQueries("added from another mailbox", inbox, queries);
+        MailBoxFile.checkEquals(Arrays.asList("5"),
+                getBodies(inbox.findBySubject("SWING")),
+                "added message found");
+
+        inbox.removeMessage(inbox.getMessages().get(0));
+        checkQueries("removed", inbox, queries);
+        MailBoxFile.checkEquals(Arrays.asList(),
+                getBodies(inbox.findBySender("Violet")),
+                "removed message not found");
+        MailBoxFile.exit();
+    }
+
+    private static void checkQueries(String state, MailBox mailBox,
+            List<MessageQuery> queries) {
+        for (MessageQuery query : queries) {
+            List<Message> expected = new ArrayList<Message>();
+            for (Message message : mailBox.getMessages()) {
+                if (matches(message, query)) {
+                    expected.add(message);
+                }
+            }
+            MailBoxFile.checkEquals(expected,
+                    Arrays.asList(mailBox.find(query)),
+                    state + " " + query);
+        }
+    }
+
+    // The conditions of the query, checked on the message itself
+    private static boolean matches(Message message, MessageQuery query) {
+        boolean ignoreCase = query.isIgnoreCase();
+        if (query.getSender() != null &&
+                !matches(message.getFrom(), query.getSender(), ignoreCase)) {
+            return false;
+        }
+        if (query.getRecipient() != null) {
+            boolean found = false;
+            for (Contact contact : message.getTo()) {
+                found |= matches(contact, query.getRecipient(), ignoreCase);
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        if (query.getSubject() != null && !contains(message.getSubject(),
+                query.getSubject(), ignoreCase)) {
+            return false;
+        }
+        String text = query.getSenderOrSubject();
+        if (text != null && !matches(message.getFrom(), text, ignoreCase) &&
+                !contains(message.getSubject(), text, ignoreCase)) {
+            return false;
+        }
+        long date = message.getDateTime();
+        return date >= query.getAfter() && date < query.getBefore();
+    }
+
+    private static boolean matches(Contact contact, String text,
+            boolean ignoreCase) {
+        return contact != null &&
+                (contains(contact.getDisplayName(), text, ignoreCase) ||
+                contains(contact.getFirstName(), text, ignoreCase) ||
+                contains(contact.getLastName(), text, ignoreCase) ||
+                contains(contact.getAddress(), text, ignoreCase));
+    }
+
+    private static boolean contains(String value, String text,
+            boolean ignoreCase) {
+        if (value == null) {
+            return false;
+        }
+        if (ignoreCase) {
+            value = value.toLowerCase();
+            text = text.toLowerCase();
+        }
+        return value.contains(text);
+    }
+
+    // The messages are told apart by their body, the index of the message
+    private static List<String> getBodies(Message[] messages) {
+        List<String> bodies = new ArrayList<String>();
+        for (Message message : messages) {
+            bodies.add(getIndex(message.getBody()));
+        }
+        return bodies;
+    }
+
+    private static String getIndex(String body) {
+        String[] words = { "First", "Second", "Third", "Fourth", "Fifth",
+                "Sixth" };
+        return String.valueOf(Arrays.asList(words).indexOf(body.trim()));
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.javaone.mailman.model.MailBox;
+import com.sun.javaone.mailman.model.Message;
+
+/**
+ * Checks that a mailbox loads the same messages whichever way it is read:
+ * a serial parse through the buffered reader, a scan of the mapped file,
+ * ranges parsed in parallel, a reload from its header index, with headers
+ * on the heap or read in place from the mapped index, and a load with an
+ * index that is damaged or that was written before messages were appended.
+ * <p>
+ * The ways of loading are set by system properties read once per run, so
+ * each load happens in a JVM of its own, which prints the subject, sender,
+ * recipients, date, preview and body of every message for this test to
+ * compare. Bodies are read at the offsets the load found, so those are
+ * compared with them.
+ */
+public class LoadModesTest {
+    private static final int MESSAGES = 3000;
+    // The messages of the mailbox when its index is first written
+    private static final int INDEXED = 2000;
+
+    private LoadModesTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 1) {
+            printMessages(new File(args[0]));
+            return;
+        }
+        File directory = MailBoxFile.createDirectory("modes");
+        File file = new File(directory, "Modes.mbox");
+        File index = new File(file.getPath() + ".idx");
+        String[] messages = createMessages();
+
+        // An index of the first messages goes stale as the rest are added
+        MailBoxFile.write(file, Arrays.copyOf(messages, INDEXED));
+        List<String> indexed = load(file, "writing a partial index");
+        MailBoxFile.check(index.exists(), "index written");
+        MailBoxFile.write(file, messages);
+        List<String> stale = load(file, "stale index");
+
+        List<String> expected = load(file, "serial parse",
+                "-D" + MailBox.HEADER_INDEX_KEY + "=false",
+                "-D" + MailBox.PARSE_RANGE_SIZE_KEY + "=0");
+        // The last indexed message ended the file, and grew when the
+        // others were added
+        int grown = indexed.size() - 1;
+        check(expected.subList(0, Math.min(expected.size(), grown)),
+                indexed.subList(0, grown),
+                "messages of the partial file");
+        check(expected, stale, "loaded with a stale index");
+        // The stale index was replaced, so make it stale again
+        MailBoxFile.write(file, Arrays.copyOf(messages, INDEXED));
+        load(file, "writing a partial index");
+        MailBoxFile.write(file, messages);
+        List<String> staleOffHeap = load(file, "stale index, off heap",
+                "-D" + MailBox.OFF_HEAP_HEADERS_KEY + "=true");
+        check(expected, staleOffHeap, "loaded off heap with a stale index");
+        MailBoxFile.check(expected.size() < MESSAGES,
+                "messages taken in by headers without an empty line");
+
+        check(expected, load(file, "mapped scan",
+                "-D" + MailBox.HEADER_INDEX_KEY + "=false",
+                "-D" + MailBox.PARSE_RANGE_SIZE_KEY + "=0",
+                "-D" + MailBox.SCAN_MODE_KEY + "=mapped"),
+                "mapped scan");
+        check(expected, load(file, "parallel ranges",
+                "-D" + MailBox.HEADER_INDEX_KEY + "=false",
+                "-D" + MailBox.PARSE_RANGE_SIZE_KEY + "=16384"),
+                "parallel ranges");
+        check(expected, load(file, "parallel mapped ranges",
+                "-D" + MailBox.HEADER_INDEX_KEY + "=false",
+                "-D" + MailBox.PARSE_RANGE_SIZE_KEY + "=16384",
+                "-D" + MailBox.SCAN_MODE_KEY + "=mapped"),
+                "parallel ranges of the mapped scan");
+
+        index.delete();
+        check(expected, load(file, "writing the index"), "index written");
+        check(expected, load(file, "index reload"), "index reload");
+        check(expected, load(file, "index reload, off heap",
+                "-D" + MailBox.OFF_HEAP_HEADERS_KEY + "=true"),
+                "index reload off heap");
+
+        RandomAccessFile damaged = new RandomAccessFile(index, "rw");
+        try {
+            damaged.setLength(damaged.length() / 2);
+        } finally {
+            damaged.close();
+        }
+        check(expected, load(file, "damaged index"), "damaged index");
+        check(expected, load(file, "index rewritten after damage"),
+                "index rewritten after damage");
+        MailBoxFile.exit();
+    }
+
+    // Messages of many sizes, with and without the optional headers. Those
+    // around the middle have no empty line after their header, so they
+    // take in the messages after them and run past where the parallel
+    // parse starts a range.
+    private static String[] createMessages() {
+        String[] messages = new String[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            StringBuilder message = new StringBuilder();
+            if (i % 7 != 3) {
+                message.append("Date: Thu, ").append(1 + i % 28)
+                        .append(" Aug 2006 16:56:").append(10 + i % 50)
+                        .append(" -0700\n");
+            }
+            message.append("From: Sender ").append(i % 37)
+                    .append(" <sender").append(i % 37)
+                    .append("@modes.test>\n");
+            message.append("To: to").append(i % 11).append("@modes.test");
+            if (i % 5 == 0) {
+                message.append(", Other <other").append(i % 13)
+                        .append("@modes.test>");
+            }
+            message.append('\n');
+            if (i % 4 == 0) {
+                message.append("Cc: cc").append(i % 3)
+                        .append("@modes.test\n");
+            }
+            message.append("Message-ID: <").append(i)
+                    .append("@modes.test>\n");
+            if (i > 0 && i % 3 == 0) {
+                message.append("References: <").append(i - 1)
+                        .append("@modes.test> <").append(i - 3)
+                        .append("@modes.test>\n");
+            }
+            message.append("Subject: ");
+            if (i % 9 == 0) {
+                message.append("=?ISO-8859-1?Q?Message_=E9_").append(i)
+                        .append("?=");
+            } else {
+                message.append("Message ").append(i);
+            }
+            message.append('\n');
+            if (Math.abs(i - MESSAGES / 2) >= 50) {
+                message.append('\n');
+            }
+            for (int line = 0; line < i % 23; line++) {
+                message.append("Line ").append(line).append(" of message ")
+                        .append(i).append(", quoting\n>From the other\n");
+            }
+            message.append("End of ").append(i);
+            messages[i] = message.toString();
+        }
+        return messages;
+    }
+
+    // Loads the mailbox in another JVM with the given options, and returns
+    // the lines it prints for its messages
+    private static List<String> load(File file, String description,
+            String... options) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"),
+                "bin" + File.separator + "java").getPath());
+        for (String argument :
+                ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!argument.startsWith("-Dmailman.") &&
+                    !argument.startsWith("-agentlib")) {
+                command.add(argument);
+            }
+        }
+        command.add("-D" + MailBox.CONTENT_INDEX_KEY + "=false");
+        // Enough workers to split the file into ranges on any machine
+        command.add("-Djava.util.concurrent.ForkJoinPool.common.parallelism=4");
+        command.addAll(Arrays.asList(options));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LoadModesTest.class.getName());
+        command.add(file.getPath());
+        File errors = new File(file.getParentFile(), "errors.txt");
+        Process process = new ProcessBuilder(command)
+                .redirectError(errors).start();
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                process.getInputStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        int status = process.waitFor();
+        MailBoxFile.checkEquals(0, status, description + " exits");
+        if (status != 0) {
+            System.out.print(new String(Files.readAllBytes(
+                    errors.toPath()), "UTF-8"));
+        }
+        return lines;
+    }
+
+    private static void check(List<String> expected, List<String> actual,
+            String description) {
+        int i = 0;
+        while (i < expected.size() && i < actual.size() &&
+                expected.get(i).equals(actual.get(i))) {
+            i++;
+        }
+        if (i == expected.size() && i == actual.size()) {
+            MailBoxFile.check(true, description);
+        } else {
+            MailBoxFile.check(false, description + " (" + actual.size() +
+                    " messages for " + expected.size() +
+                    ", first difference at message " + i + ")");
+        }
+    }
+
+    private static void printMessages(File file) throws IOException {
+        MailBox mailBox = new MailBox(MailBox.Type.OTHER, "Modes", null,
+                file);
+        StringBuilder line = new StringBuilder();
+        for (Message message : mailBox.getMessages()) {
+            line.setLength(0);
+            line.append(message.getSubject()).append('|')
+                    .append(message.getFrom()).append('|')
+                    .append(Arrays.toString(message.getTo())).append('|')
+                    .append(Arrays.toString(message.getCc())).append('|')
+                    .append(message.getDateTime()).append('|')
+                    .append(escape(message.getPreview())).append('|')
+                    .append(escape(message.getBody()));
+            System.out.println(line);
+        }
+        System.out.flush();
+    }
+
+    private static String escape(String text) {
+        return (text == null) ? null :
+            text.replace("\\", "\\\\").replace("\r", "\\r")
+                    .replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2006, Sun Microsystems, Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the TimingFramework project nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.sun.javaone.mailman.model.MailBox;
+
+/**
+ * Writes mbox files in a temporary directory for the tests, and counts
+ * the failed checks.
+ */
+final class MailBoxFile {
+    private static int failures;
+
+    private MailBoxFile() {
+    }
+
+    /**
+     * Returns a new temporary directory, deleted with its files on exit.
+     */
+    static File createDirectory(String name) throws IOException {
+        final File directory = File.createTempFile(name, "");
+        directory.delete();
+        if (!directory.mkdir()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                File[] files = directory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                directory.delete();
+            }
+        });
+        return directory;
+    }
+
+    /**
+     * Writes the messages to <code>file</code>, each one made of its
+     * header lines, an empty line and its body, and separated by
+     * <code>From</code> lines. Characters are written as ISO-8859-1 bytes,
+     * the charset header fields are read with.
+     */
+    static void write(File file, String... messages) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String message : messages) {
+            if (text.length() > 0) {
+                text.append("\r\n");
+            }
+            text.append("From - Wed Aug 16 10:10:41 2006\r\n");
+            text.append(message.replace("\r\n", "\n").replace("\n", "\r\n"));
+            text.append("\r\n");
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.toString().getBytes("ISO-8859-1"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the messages to a file of <code>directory</code> and loads it.
+     */
+    static MailBox create(File directory, String name, String... messages)
+            throws IOException {
+        File file = new File(directory, name + ".mbox");
+        write(file, messages);
+        return new MailBox(MailBox.Type.OTHER, name, null, file);
+    }
+
+    static void check(boolean condition, String description) {
+        if (condition) {
+            System.out.println("ok   " + description);
+        } else {
+            System.out.println("FAIL " + description);
+            failures++;
+        }
+    }
+
+    static void checkEquals(Object expected, Object actual,
+            String description) {
+        boolean equal = (expected == null) ? actual == null :
+            expected.equals(actual);
+        check(equal, description + (equal ? "" :
+            " (expected " + expected + ", got " + actual + ")"));
+    }
+
+    /**
+     * Exits with a non zero status if a check failed.
+     */
+    static void exit() {
+        System.out.println((failures == 0) ? "All checks passed" :
+            failures + " checks failed");
+        System.exit((failures == 0) ? 0 : 1);
+    }
+}